@@ -10,9 +10,30 @@ public class Annotation extends RectF {
 	}
 
 	public final Type type;
+	// Assigned by MuPDFCore when the annotation is first seen, and kept
+	// while it stays on its page unchanged; 0 until then. The native
+	// library has no identifier of its own to keep, so an annotation that
+	// is moved or resized comes back with a new id, and of two the same
+	// in type and rect, either may take the other's.
+	long id;
 
 	public Annotation(float x0, float y0, float x1, float y1, int _type) {
 		super(x0, y0, x1, y1);
 		type = _type == -1 ? Type.UNKNOWN : Type.values()[_type];
 	}
+
+	Annotation(Annotation other) {
+		super(other);
+		type = other.type;
+		id = other.id;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	// Whether other could be this annotation, as seen in an earlier list
+	boolean sameAs(Annotation other) {
+		return type == other.type && equals(other);
+	}
 }
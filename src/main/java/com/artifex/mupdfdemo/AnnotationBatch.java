@@ -0,0 +1,173 @@
+package com.artifex.mupdfdemo;
+
+import android.graphics.PointF;
+import android.graphics.RectF;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * A set of annotation edits, possibly across many pages, to be applied
+ * together by MuPDFCore.applyAnnotations. The core is locked once for
+ * the whole batch and each page is loaded once, and the result says
+ * which pages changed and where, so each needs redrawing only once.
+ *
+ * Deletions refer to annotations by id, or by index as they are before
+ * the batch is applied. On each page they are carried out first, each
+ * annotation once however many deletions name it, highest index first,
+ * so that earlier deletions on a page do not shift the indices of later
+ * ones.
+ */
+public class AnnotationBatch {
+	// Ink lines have some width; allow for it in the changed area
+	private static final float INK_MARGIN = 10.0f;
+
+	static final int DELETE = 0;
+	static final int MARKUP = 1;
+	static final int INK = 2;
+
+	static class Edit {
+		final int kind;
+		final int page;
+		final int sequence;
+		int index;
+		long id;  // 0 when the deletion is by index
+		PointF quadPoints[];
+		Annotation.Type type;
+		PointF arcs[][];
+
+		Edit(int _kind, int _page, int _sequence) {
+			kind = _kind;
+			page = _page;
+			sequence = _sequence;
+		}
+	}
+
+	public static class Result {
+		private final SparseArray<RectF> mChanged = new SparseArray<RectF>();
+		private final SparseArray<AnnotationDiff> mDiffs = new SparseArray<AnnotationDiff>();
+
+		void addDiff(AnnotationDiff diff) {
+			mDiffs.put(diff.page, diff);
+		}
+
+		// How the page's annotation list changed, or null if the page was not edited
+		public AnnotationDiff getDiff(int page) {
+			return mDiffs.get(page);
+		}
+
+		void include(int page, RectF area) {
+			RectF changed = mChanged.get(page);
+			if (changed == null)
+				mChanged.put(page, new RectF(area));
+			else
+				changed.set(Math.min(changed.left, area.left), Math.min(changed.top, area.top),
+						Math.max(changed.right, area.right), Math.max(changed.bottom, area.bottom));
+		}
+
+		public int countPages() {
+			return mChanged.size();
+		}
+
+		// Pages in increasing order
+		public int getPage(int i) {
+			return mChanged.keyAt(i);
+		}
+
+		// The area of the page, in page coordinates, that the batch changed,
+		// or null if the page was not changed
+		public RectF getChangedArea(int page) {
+			return mChanged.get(page);
+		}
+	}
+
+	private final ArrayList<Edit> mEdits = new ArrayList<Edit>();
+
+	public AnnotationBatch addMarkup(int page, PointF quadPoints[], Annotation.Type type) {
+		Edit edit = new Edit(MARKUP, page, mEdits.size());
+		edit.quadPoints = quadPoints;
+		edit.type = type;
+		mEdits.add(edit);
+		return this;
+	}
+
+	public AnnotationBatch addInk(int page, PointF arcs[][]) {
+		Edit edit = new Edit(INK, page, mEdits.size());
+		edit.arcs = arcs;
+		mEdits.add(edit);
+		return this;
+	}
+
+	public AnnotationBatch delete(int page, int annotationIndex) {
+		Edit edit = new Edit(DELETE, page, mEdits.size());
+		edit.index = annotationIndex;
+		mEdits.add(edit);
+		return this;
+	}
+
+	public AnnotationBatch deleteById(int page, long annotationId) {
+		Edit edit = new Edit(DELETE, page, mEdits.size());
+		edit.id = annotationId;
+		mEdits.add(edit);
+		return this;
+	}
+
+	public int size() {
+		return mEdits.size();
+	}
+
+	public boolean isEmpty() {
+		return mEdits.isEmpty();
+	}
+
+	public void clear() {
+		mEdits.clear();
+	}
+
+	ArrayList<Edit> edits() {
+		return mEdits;
+	}
+
+	// The edits grouped by page, in the order they were made within a page
+	Edit[] ordered() {
+		Edit edits[] = mEdits.toArray(new Edit[mEdits.size()]);
+		Arrays.sort(edits, new Comparator<Edit>() {
+			public int compare(Edit a, Edit b) {
+				if (a.page != b.page)
+					return a.page < b.page ? -1 : 1;
+				return a.sequence - b.sequence;
+			}
+		});
+		return edits;
+	}
+
+	// Bounds of the points of all the arcs; RectF.union would skip the
+	// empty rectangles of single point arcs
+	static RectF bounds(PointF arcs[][], float margin, RectF out) {
+		float left = Float.MAX_VALUE, top = Float.MAX_VALUE;
+		float right = -Float.MAX_VALUE, bottom = -Float.MAX_VALUE;
+		for (PointF points[] : arcs) {
+			for (PointF p : points) {
+				left = Math.min(left, p.x);
+				top = Math.min(top, p.y);
+				right = Math.max(right, p.x);
+				bottom = Math.max(bottom, p.y);
+			}
+		}
+		if (left > right)
+			out.setEmpty();
+		else
+			out.set(left - margin, top - margin, right + margin, bottom + margin);
+		return out;
+	}
+
+	static RectF inkBounds(PointF arcs[][], RectF out) {
+		return bounds(arcs, INK_MARGIN, out);
+	}
+
+	static RectF markupBounds(PointF quadPoints[], RectF out) {
+		return bounds(new PointF[][] {quadPoints}, 0, out);
+	}
+}
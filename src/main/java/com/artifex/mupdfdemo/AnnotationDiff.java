@@ -0,0 +1,65 @@
+package com.artifex.mupdfdemo;
+
+import android.graphics.RectF;
+
+/*
+ * How the annotations of a page changed with an edit, by annotation id,
+ * so that a view holding the list from before can bring it up to date
+ * without fetching it again.
+ */
+public class AnnotationDiff {
+	public final int page;
+	public final Annotation added[];
+	public final Annotation removed[];
+
+	AnnotationDiff(int _page, Annotation _added[], Annotation _removed[]) {
+		page = _page;
+		added = _added;
+		removed = _removed;
+	}
+
+	public boolean isEmpty() {
+		return added.length == 0 && removed.length == 0;
+	}
+
+	// The part of the page the edit changed, or null if none
+	public RectF getChangedArea() {
+		RectF area = null;
+		for (Annotation a : added)
+			area = include(area, a);
+		for (Annotation a : removed)
+			area = include(area, a);
+		return area;
+	}
+
+	private static RectF include(RectF area, RectF r) {
+		if (area == null)
+			return new RectF(r);
+		area.set(Math.min(area.left, r.left), Math.min(area.top, r.top),
+				Math.max(area.right, r.right), Math.max(area.bottom, r.bottom));
+		return area;
+	}
+
+	// The list after the edit, given the list before it
+	public Annotation[] apply(Annotation list[]) {
+		int count = 0;
+		Annotation result[] = new Annotation[list.length + added.length];
+		for (Annotation a : list)
+			if (!contains(removed, a.id))
+				result[count++] = a;
+		for (Annotation a : added)
+			result[count++] = a;
+		if (count == result.length)
+			return result;
+		Annotation trimmed[] = new Annotation[count];
+		System.arraycopy(result, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	private static boolean contains(Annotation list[], long id) {
+		for (Annotation a : list)
+			if (a.id == id)
+				return true;
+		return false;
+	}
+}
@@ -0,0 +1,153 @@
+package com.artifex.mupdfdemo;
+
+import android.graphics.PointF;
+
+/*
+ * Reduces the points of ink strokes before they are written to the
+ * document. Points closer than the tolerance to the line through their
+ * neighbours are dropped by Ramer-Douglas-Peucker; the result can then
+ * optionally be rounded off again by Chaikin corner cutting, which adds
+ * back a few points where the stroke bends. The tolerance is in the
+ * coordinates the strokes are given in: for PageView, those of the page
+ * as fitted to the screen at zoom 1, not PDF units.
+ */
+public class InkSimplifier {
+	public static final float DEFAULT_TOLERANCE = 0.5f;
+
+	public static class Result {
+		public final PointF arcs[][];
+		public final int pointsIn;
+		public final int pointsOut;
+
+		Result(PointF _arcs[][], int _pointsIn, int _pointsOut) {
+			arcs = _arcs;
+			pointsIn = _pointsIn;
+			pointsOut = _pointsOut;
+		}
+
+		public float reduction() {
+			return pointsIn > 0 ? 1.0f - (float)pointsOut / pointsIn : 0.0f;
+		}
+
+		public String toString() {
+			return pointsIn + " -> " + pointsOut + " points (" + Math.round(reduction() * 100) + "% fewer)";
+		}
+	}
+
+	private final float mTolerance;
+	private final int mSmoothing;
+
+	public InkSimplifier() {
+		this(DEFAULT_TOLERANCE, 0);
+	}
+
+	// smoothing is the number of corner cutting passes, 0 for none
+	public InkSimplifier(float tolerance, int smoothing) {
+		if (tolerance < 0 || smoothing < 0)
+			throw new IllegalArgumentException("tolerance and smoothing must not be negative");
+		mTolerance = tolerance;
+		mSmoothing = smoothing;
+	}
+
+	public Result simplify(PointF arcs[][]) {
+		PointF out[][] = new PointF[arcs.length][];
+		int pointsIn = 0;
+		int pointsOut = 0;
+		for (int i = 0; i < arcs.length; i++) {
+			PointF arc[] = simplifyArc(arcs[i]);
+			for (int s = 0; s < mSmoothing; s++)
+				arc = smooth(arc);
+			out[i] = arc;
+			pointsIn += arcs[i].length;
+			pointsOut += arc.length;
+		}
+		return new Result(out, pointsIn, pointsOut);
+	}
+
+	private PointF[] simplifyArc(PointF arc[]) {
+		int n = arc.length;
+		if (n <= 2)
+			return arc;
+
+		boolean keep[] = new boolean[n];
+		keep[0] = keep[n - 1] = true;
+
+		// Ranges still to examine, as a stack of first, last pairs
+		int stack[] = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n - 1;
+		float tol2 = mTolerance * mTolerance;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+
+			int farthest = -1;
+			float maxDist2 = tol2;
+			for (int i = first + 1; i < last; i++) {
+				float d2 = distance2(arc[i], arc[first], arc[last]);
+				if (d2 > maxDist2) {
+					maxDist2 = d2;
+					farthest = i;
+				}
+			}
+
+			if (farthest >= 0) {
+				keep[farthest] = true;
+				if (top + 4 > stack.length) {
+					int grown[] = new int[stack.length * 2];
+					System.arraycopy(stack, 0, grown, 0, top);
+					stack = grown;
+				}
+				stack[top++] = first;
+				stack[top++] = farthest;
+				stack[top++] = farthest;
+				stack[top++] = last;
+			}
+		}
+
+		int count = 0;
+		for (int i = 0; i < n; i++)
+			if (keep[i])
+				count++;
+		PointF result[] = new PointF[count];
+		count = 0;
+		for (int i = 0; i < n; i++)
+			if (keep[i])
+				result[count++] = arc[i];
+		return result;
+	}
+
+	// Squared distance from p to the segment a-b
+	private static float distance2(PointF p, PointF a, PointF b) {
+		float dx = b.x - a.x;
+		float dy = b.y - a.y;
+		float len2 = dx * dx + dy * dy;
+		float t = len2 > 0 ? ((p.x - a.x) * dx + (p.y - a.y) * dy) / len2 : 0;
+		t = Math.max(0, Math.min(1, t));
+		float ex = a.x + t * dx - p.x;
+		float ey = a.y + t * dy - p.y;
+		return ex * ex + ey * ey;
+	}
+
+	// One pass of Chaikin corner cutting, keeping the end points
+	private static PointF[] smooth(PointF arc[]) {
+		int n = arc.length;
+		if (n <= 2)
+			return arc;
+
+		PointF result[] = new PointF[2 * (n - 1)];
+		int k = 0;
+		result[k++] = arc[0];
+		for (int i = 0; i < n - 1; i++) {
+			PointF a = arc[i];
+			PointF b = arc[i + 1];
+			if (i > 0)
+				result[k++] = new PointF(0.75f * a.x + 0.25f * b.x, 0.75f * a.y + 0.25f * b.y);
+			if (i < n - 2)
+				result[k++] = new PointF(0.25f * a.x + 0.75f * b.x, 0.25f * a.y + 0.75f * b.y);
+		}
+		result[k++] = arc[n - 1];
+		return result;
+	}
+}
@@ -0,0 +1,47 @@
+package com.artifex.mupdfdemo;
+
+import android.graphics.PointF;
+
+/*
+ * The points of one ink stroke, in page coordinates, packed x, y, x, y
+ * into a single growable array rather than one PointF per point.
+ */
+public class InkStroke {
+	private float mPoints[];
+	private int mCount;
+
+	public InkStroke(float x, float y) {
+		mPoints = new float[32];
+		add(x, y);
+	}
+
+	public void add(float x, float y) {
+		if (mCount * 2 == mPoints.length) {
+			float grown[] = new float[mPoints.length * 2];
+			System.arraycopy(mPoints, 0, grown, 0, mCount * 2);
+			mPoints = grown;
+		}
+		mPoints[mCount * 2] = x;
+		mPoints[mCount * 2 + 1] = y;
+		mCount++;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public float getX(int i) {
+		return mPoints[i * 2];
+	}
+
+	public float getY(int i) {
+		return mPoints[i * 2 + 1];
+	}
+
+	public PointF[] toPoints() {
+		PointF points[] = new PointF[mCount];
+		for (int i = 0; i < mCount; i++)
+			points[i] = new PointF(mPoints[i * 2], mPoints[i * 2 + 1]);
+		return points;
+	}
+}
@@ -0,0 +1,137 @@
+package com.artifex.mupdfdemo;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/*
+ * Passes the system's memory pressure on to everything that holds memory
+ * it could give back: caches, the native store, page bitmaps. They register
+ * with a priority, and on onTrimMemory are asked, cheapest to rebuild first,
+ * to free what suits the level. Each says how much it freed, and the total
+ * is logged and kept for getLastReclaimed.
+ *
+ * Registrations are held weakly, so there is no need to unregister; a
+ * registrant must therefore be an object its owner keeps, not a wrapper
+ * made just to register. Use on the UI thread.
+ */
+public class MemoryManager implements ComponentCallbacks2 {
+	private static final String TAG = "MemoryManager";
+
+	// Caches that are cheap to fill again
+	public static final int PRIORITY_CACHE = 0;
+	// The native store of fonts, images and parsed objects
+	public static final int PRIORITY_NATIVE = 1;
+	// Rendered pages and page views
+	public static final int PRIORITY_PAGES = 2;
+
+	public interface Trimmable {
+		/*
+		 * Free memory as suits level, one of the ComponentCallbacks2
+		 * TRIM_MEMORY_ levels. Returns the number of bytes freed, as near as
+		 * can be told.
+		 */
+		long trim(int level);
+	}
+
+	private static class Registration {
+		final WeakReference<Trimmable> trimmable;
+		final int priority;
+
+		Registration(Trimmable _trimmable, int _priority) {
+			trimmable = new WeakReference<Trimmable>(_trimmable);
+			priority = _priority;
+		}
+	}
+
+	private static MemoryManager sInstance;
+
+	private final ArrayList<Registration> mRegistrations = new ArrayList<Registration>();
+	private long mLastReclaimed;
+
+	private MemoryManager() {
+	}
+
+	public static synchronized MemoryManager getInstance() {
+		if (sInstance == null)
+			sInstance = new MemoryManager();
+		return sInstance;
+	}
+
+	/*
+	 * Start listening for memory pressure. Only the first call does anything.
+	 */
+	public static synchronized void install(Context context) {
+		boolean installed = sInstance != null;
+		MemoryManager manager = getInstance();
+		if (!installed)
+			context.getApplicationContext().registerComponentCallbacks(manager);
+	}
+
+	public synchronized void register(Trimmable trimmable, int priority) {
+		// Kept in priority order, and in order of registration within a priority
+		int i = mRegistrations.size();
+		while (i > 0 && mRegistrations.get(i - 1).priority > priority)
+			i--;
+		mRegistrations.add(i, new Registration(trimmable, priority));
+	}
+
+	public synchronized void unregister(Trimmable trimmable) {
+		for (int i = mRegistrations.size() - 1; i >= 0; i--)
+			if (mRegistrations.get(i).trimmable.get() == trimmable)
+				mRegistrations.remove(i);
+	}
+
+	/*
+	 * Ask everything registered to free memory for level, in priority
+	 * order. Returns the number of bytes freed.
+	 */
+	public long trim(int level) {
+		ArrayList<Trimmable> trimmables = new ArrayList<Trimmable>();
+		synchronized (this) {
+			for (int i = mRegistrations.size() - 1; i >= 0; i--)
+				if (mRegistrations.get(i).trimmable.get() == null)
+					mRegistrations.remove(i);
+			for (Registration registration : mRegistrations) {
+				Trimmable trimmable = registration.trimmable.get();
+				if (trimmable != null)
+					trimmables.add(trimmable);
+			}
+		}
+
+		long reclaimed = 0;
+		for (Trimmable trimmable : trimmables) {
+			try {
+				reclaimed += trimmable.trim(level);
+			} catch (RuntimeException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+		}
+
+		synchronized (this) {
+			mLastReclaimed = reclaimed;
+		}
+		Log.i(TAG, "Trim level " + level + ": " + (reclaimed / 1024) + "KB reclaimed from " + trimmables.size() + " holders");
+		return reclaimed;
+	}
+
+	// Bytes freed by the last trim
+	public synchronized long getLastReclaimed() {
+		return mLastReclaimed;
+	}
+
+	public void onTrimMemory(int level) {
+		trim(level);
+	}
+
+	public void onLowMemory() {
+		trim(TRIM_MEMORY_COMPLETE);
+	}
+
+	public void onConfigurationChanged(Configuration newConfig) {
+	}
+}
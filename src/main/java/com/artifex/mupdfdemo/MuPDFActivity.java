@@ -33,6 +33,7 @@ import android.widget.ImageButton;
 import android.widget.RelativeLayout;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.ViewAnimator;
 
 class ThreadPerTaskExecutor implements Executor {
@@ -211,7 +212,7 @@ public class MuPDFActivity extends Activity implements FilePicker.FilePickerSupp
 		System.out.println("Trying to open "+path);
 		try
 		{
-			core = new MuPDFCore(this, path);
+			core = new MuPDFCore(this, path, MuPDFCore.storeLimitFor(this));
 			// New file: drop the old outline data
 			OutlineActivityData.set(null);
 		}
@@ -228,7 +229,7 @@ public class MuPDFActivity extends Activity implements FilePicker.FilePickerSupp
 		System.out.println("Trying to open byte buffer");
 		try
 		{
-			core = new MuPDFCore(this, buffer, magic);
+			core = new MuPDFCore(this, buffer, magic, MuPDFCore.storeLimitFor(this));
 			// New file: drop the old outline data
 			OutlineActivityData.set(null);
 		}
@@ -631,7 +632,8 @@ public class MuPDFActivity extends Activity implements FilePicker.FilePickerSupp
 	private void reflowModeSet(boolean reflow)
 	{
 		mReflow = reflow;
-		mDocView.setAdapter(mReflow ? new MuPDFReflowAdapter(this, core) : new MuPDFPageAdapter(this, this, core));
+		boolean textLayout = getIntent().getBooleanExtra(MuPDFFragment.PARAM_REFLOW_TEXT_LAYOUT, false);
+		mDocView.setAdapter(mReflow ? new MuPDFReflowAdapter(this, core, textLayout) : new MuPDFPageAdapter(this, this, core));
 		mReflowButton.setColorFilter(mReflow ? Color.argb(0xFF, 172, 114, 37) : Color.argb(0xFF, 255, 255, 255));
 		setButtonEnabled(mAnnotButton, !reflow);
 		setButtonEnabled(mSearchButton, !reflow);
@@ -1104,10 +1106,19 @@ public class MuPDFActivity extends Activity implements FilePicker.FilePickerSupp
 		if (core != null && core.hasChanges()) {
 			DialogInterface.OnClickListener listener = new DialogInterface.OnClickListener() {
 				public void onClick(DialogInterface dialog, int which) {
-					if (which == AlertDialog.BUTTON_POSITIVE)
-						core.save();
+					if (which != AlertDialog.BUTTON_POSITIVE) {
+						finish();
+						return;
+					}
 
-					finish();
+					new SaveTask(MuPDFActivity.this, core) {
+						@Override
+						protected void onSaveFinished(boolean saved) {
+							if (!saved)
+								Toast.makeText(MuPDFActivity.this, getFailureMessage(), Toast.LENGTH_LONG).show();
+							finish();
+						}
+					}.go();
 				}
 			};
 			AlertDialog alert = mAlertBuilder.create();
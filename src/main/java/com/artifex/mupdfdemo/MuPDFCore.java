@@ -1,19 +1,48 @@
 package com.artifex.mupdfdemo;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.TreeSet;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.PointF;
 import android.graphics.RectF;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.artifex.utils.PdfBitmap;
 
-public class MuPDFCore
+public class MuPDFCore implements MemoryManager.Trimmable
 {
 	/* load our native library */
 	static {
 		System.loadLibrary("mupdf");
 	}
 
+	// Store limit meaning whatever the native library defaults to
+	public static final long STORE_DEFAULT = 0;
+	// Room wanted for the changes themselves when saving, over that for the copy
+	private static final long SAVE_MARGIN = 1024 * 1024;
+
 	/* Readable members */
 	private int numPages = -1;
 	private float pageWidth;
@@ -23,10 +52,42 @@ public class MuPDFCore
 	private String file_format;
 	private boolean isUnencryptedPDF;
 	private final boolean wasOpenedFromBuffer;
+	private final String filePath;
+	// Held for a whole save, so that only one copy of the file is made at a time
+	private final Object saveLock = new Object();
+	// Guards pendingShrink: the percent trim has queued shrinkStore for, or -1
+	private final Object shrinkLock = new Object();
+	private int pendingShrink = -1;
+	// The annotations of each page as last seen, with the ids given them
+	private final SparseArray<Annotation[]> annotationLists = new SparseArray<Annotation[]>();
+	private long lastAnnotationId;
+	// Set when the native library was built without stamp flattening
+	private static boolean noStampSupport;
+	// The stamps flattenStamps has put into the document, saved or not
+	private final HashSet<PdfBitmap> placedStamps = new HashSet<PdfBitmap>();
+	// Set when the native library cannot shrink its store
+	private static boolean noStoreShrink;
+	// Set when the native library cannot size, measure or scavenge its store
+	private static boolean noStoreControl;
+	// Set when the native library cannot append changes to the file
+	private static boolean noIncrementalSave;
+	// Set when the native library cannot append the changes to a copy of
+	// the file it opened
+	private static boolean noSaveCopy;
+	// Set when the native library cannot return page text as flat arrays
+	private static boolean noFlatText;
 
 	/* The native functions */
 	private native long openFile(String filename);
 	private native long openBuffer(String magic);
+	// As openFile and openBuffer, with the store limited to storeLimit bytes
+	private native long openFileWithStore(String filename, long storeLimit);
+	private native long openBufferWithStore(String magic, long storeLimit);
+	private native long getStoreSizeInternal();
+	private native long getStoreLimitInternal();
+	// Frees cached objects until at least bytes are freed or the store is
+	// empty; returns the bytes freed
+	private native long scavengeStoreInternal(long bytes);
 	private native String fileFormatInternal();
 	private native boolean isUnencryptedPDFInternal();
 	private native int countPagesInternal();
@@ -46,6 +107,9 @@ public class MuPDFCore
 			long cookiePtr);
 	private native RectF[] searchPage(String text);
 	private native TextChar[][][][] text();
+	// The text of the current page straight into the arrays of a TextPage,
+	// without a TextChar per glyph
+	private native TextPage textPageInternal();
 	private native byte[] textAsHtml();
 	private native void addMarkupAnnotationInternal(PointF[] quadPoints, int type);
 	private native void addInkAnnotationInternal(PointF[][] arcs);
@@ -74,6 +138,23 @@ public class MuPDFCore
 	private native void destroying();
 	private native boolean hasChangesInternal();
 	private native void saveInternal();
+	private native void saveIncrementalInternal();
+	// Appends the changes to the file at path, a copy of the file opened,
+	// as saveIncrementalInternal would append them to that file. The
+	// document is left as if unsaved until rebaseInternal.
+	private native boolean saveIncrementalToFileInternal(String path);
+	// Takes the file at path, as written by saveIncrementalToFileInternal,
+	// as the document's own: its changes are saved, and later ones are
+	// appended after them
+	private native void rebaseInternal(String path);
+	// Stamp flattening: images are added to the document once, as image
+	// XObjects, and referred to by index until endImagesInternal
+	private native int addImageInternal(Bitmap image);
+	private native boolean placeImageInternal(int image, float x0, float y0, float x1, float y1);
+	private native void endImagesInternal();
+	// Frees cached objects until the store is at most percent of its
+	// current size; returns the bytes freed
+	private native long shrinkStoreInternal(int percent);
 	private native long createCookie();
 	private native void destroyCookie(long cookie);
 	private native void abortCookie(long cookie);
@@ -106,7 +187,26 @@ public class MuPDFCore
 
 	public MuPDFCore(Context context, String filename) throws Exception
 	{
-		globals = openFile(filename);
+		this(context, filename, STORE_DEFAULT);
+	}
+
+	/*
+	 * Open the document with the native store, which caches fonts, images
+	 * and parsed objects, limited to storeLimit bytes; see storeLimitFor.
+	 */
+	public MuPDFCore(Context context, String filename, long storeLimit) throws Exception
+	{
+		globals = 0;
+		if (storeLimit != STORE_DEFAULT && !noStoreControl) {
+			try {
+				globals = openFileWithStore(filename, storeLimit);
+			} catch (UnsatisfiedLinkError e) {
+				Log.e("MuPDFCore", "No native store limit; opening with the default", e);
+				noStoreControl = true;
+			}
+		}
+		if (globals == 0)
+			globals = openFile(filename);
 		if (globals == 0)
 		{
 			throw new Exception(String.format(context.getString(R.string.cannot_open_file_Path), filename));
@@ -114,11 +214,31 @@ public class MuPDFCore
 		file_format = fileFormatInternal();
 		isUnencryptedPDF = isUnencryptedPDFInternal();
 		wasOpenedFromBuffer = false;
+		filePath = filename;
+		MemoryManager.install(context);
+		MemoryManager.getInstance().register(this, MemoryManager.PRIORITY_NATIVE);
 	}
 
 	public MuPDFCore(Context context, byte buffer[], String magic) throws Exception {
+		this(context, buffer, magic, STORE_DEFAULT);
+	}
+
+	public MuPDFCore(Context context, byte buffer[], String magic, long storeLimit) throws Exception {
 		fileBuffer = buffer;
-		globals = openBuffer(magic != null ? magic : "");
+		filePath = null;
+		if (magic == null)
+			magic = "";
+		globals = 0;
+		if (storeLimit != STORE_DEFAULT && !noStoreControl) {
+			try {
+				globals = openBufferWithStore(magic, storeLimit);
+			} catch (UnsatisfiedLinkError e) {
+				Log.e("MuPDFCore", "No native store limit; opening with the default", e);
+				noStoreControl = true;
+			}
+		}
+		if (globals == 0)
+			globals = openBuffer(magic);
 		if (globals == 0)
 		{
 			throw new Exception(context.getString(R.string.cannot_open_buffer));
@@ -126,6 +246,8 @@ public class MuPDFCore
 		file_format = fileFormatInternal();
 		isUnencryptedPDF = isUnencryptedPDFInternal();
 		wasOpenedFromBuffer = true;
+		MemoryManager.install(context);
+		MemoryManager.getInstance().register(this, MemoryManager.PRIORITY_NATIVE);
 	}
 
 	public  int countPages()
@@ -192,6 +314,119 @@ public class MuPDFCore
 	public synchronized void onDestroy() {
 		destroying();
 		globals = 0;
+		MemoryManager.getInstance().unregister(this);
+	}
+
+	/*
+	 * A store limit for the device: a quarter of the heap the system gives
+	 * each app, which follows the device class. For the constructors.
+	 */
+	public static long storeLimitFor(Context context) {
+		ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		if (am == null)
+			return STORE_DEFAULT;
+		return am.getMemoryClass() * 1024L * 1024L / 4;
+	}
+
+	// Bytes the native store holds now; -1 if the native library cannot tell
+	public synchronized long getStoreSize() {
+		if (globals == 0 || noStoreControl)
+			return -1;
+		try {
+			return getStoreSizeInternal();
+		} catch (UnsatisfiedLinkError e) {
+			Log.e("MuPDFCore", "No native store statistics", e);
+			noStoreControl = true;
+			return -1;
+		}
+	}
+
+	// Bytes the native store may hold; -1 if the native library cannot tell
+	public synchronized long getStoreLimit() {
+		if (globals == 0 || noStoreControl)
+			return -1;
+		try {
+			return getStoreLimitInternal();
+		} catch (UnsatisfiedLinkError e) {
+			Log.e("MuPDFCore", "No native store statistics", e);
+			noStoreControl = true;
+			return -1;
+		}
+	}
+
+	/*
+	 * Free at least bytes from the native store, if it holds that much, least
+	 * recently used objects first. Returns the bytes freed; 0 if the native
+	 * library cannot do it.
+	 */
+	public synchronized long scavengeStore(long bytes) {
+		if (globals == 0 || noStoreControl)
+			return 0;
+		try {
+			return scavengeStoreInternal(bytes);
+		} catch (UnsatisfiedLinkError e) {
+			Log.e("MuPDFCore", "No native store scavenging", e);
+			noStoreControl = true;
+			return 0;
+		}
+	}
+
+	/*
+	 * Shrink the native store the more the higher the level. fileBuffer,
+	 * for documents opened from memory, cannot be given back: the native
+	 * document reads from it for as long as it is open. The store is
+	 * shrunk in the background, as taking the lock on the UI thread could
+	 * wait for a render to finish, so this returns 0 and the bytes freed
+	 * are logged once known.
+	 */
+	public long trim(int level) {
+		int percent;
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+			percent = 0;
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+			percent = 25;
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			percent = 50;
+		else
+			percent = 75;
+
+		// A shrink already queued takes the harder of the two
+		synchronized (shrinkLock) {
+			boolean queued = pendingShrink >= 0;
+			if (!queued || percent < pendingShrink)
+				pendingShrink = percent;
+			if (queued)
+				return 0;
+		}
+		AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+			public void run() {
+				int percent;
+				synchronized (shrinkLock) {
+					percent = pendingShrink;
+					pendingShrink = -1;
+				}
+				long freed = shrinkStore(percent);
+				Log.i("MuPDFCore", "Store shrunk to " + percent + "%: " + (freed / 1024) + "KB reclaimed");
+			}
+		});
+		return 0;
+	}
+
+	/*
+	 * Free cached fonts, images and parsed objects until the store is at
+	 * most percent of its current size. Returns the bytes freed; 0 if the
+	 * native library cannot do it.
+	 */
+	public synchronized long shrinkStore(int percent) {
+		if (globals == 0 || noStoreShrink)
+			return 0;
+		try {
+			return shrinkStoreInternal(percent);
+		} catch (UnsatisfiedLinkError e) {
+			Log.e("MuPDFCore", "No native store shrinking", e);
+			noStoreShrink = true;
+			return 0;
+		}
 	}
 
 	public synchronized void drawPage(Bitmap bm, int page,
@@ -258,7 +493,94 @@ public class MuPDFCore
 	}
 
 	public synchronized Annotation [] getAnnoations(int page) {
-		return getAnnotationsInternal(page);
+		gotoPage(page);
+		refreshAnnotations(page);
+		return copyOf(annotationLists.get(page));
+	}
+
+	// The lists kept to match ids against are never handed out: callers
+	// get copies, which they are free to change
+	private static Annotation[] copyOf(Annotation list[]) {
+		Annotation copy[] = new Annotation[list.length];
+		for (int i = 0; i < list.length; i++)
+			copy[i] = new Annotation(list[i]);
+		return copy;
+	}
+
+	/*
+	 * Fetch the page's annotations and give each the id of the annotation
+	 * it matches in the list seen before, or a new one. Edits keep the
+	 * order of the annotations they do not touch, so matching goes in
+	 * order, by type and rect, there being no native identifier to match
+	 * by. Returns how the list changed.
+	 */
+	private AnnotationDiff refreshAnnotations(int page) {
+		Annotation fresh[] = getAnnotationsInternal(page);
+		if (fresh == null)
+			fresh = new Annotation[0];
+		Annotation known[] = annotationLists.get(page);
+		if (known == null)
+			known = new Annotation[0];
+
+		boolean matched[] = new boolean[known.length];
+		boolean isNew[] = new boolean[fresh.length];
+		int numAdded = 0;
+		int next = 0;
+		for (int i = 0; i < fresh.length; i++) {
+			int j = next;
+			while (j < known.length && !known[j].sameAs(fresh[i]))
+				j++;
+			if (j < known.length) {
+				fresh[i].id = known[j].id;
+				matched[j] = true;
+				next = j + 1;
+			} else {
+				fresh[i].id = ++lastAnnotationId;
+				isNew[i] = true;
+				numAdded++;
+			}
+		}
+
+		Annotation added[] = new Annotation[numAdded];
+		Annotation removed[] = new Annotation[known.length - (fresh.length - numAdded)];
+		int k = 0;
+		for (int i = 0; i < fresh.length; i++)
+			if (isNew[i])
+				added[k++] = new Annotation(fresh[i]);
+		k = 0;
+		for (int j = 0; j < known.length; j++)
+			if (!matched[j])
+				removed[k++] = known[j];
+
+		annotationLists.put(page, fresh);
+		return new AnnotationDiff(page, added, removed);
+	}
+
+	// The page's annotations as last seen, fetching them if not yet seen
+	private Annotation[] knownAnnotations(int page) {
+		Annotation known[] = annotationLists.get(page);
+		if (known == null) {
+			refreshAnnotations(page);
+			known = annotationLists.get(page);
+		}
+		return known;
+	}
+
+	private static int indexOfId(Annotation list[], long id) {
+		for (int i = 0; i < list.length; i++)
+			if (list[i].id == id)
+				return i;
+		return -1;
+	}
+
+	public synchronized PageMetadata getPageMetadata(int page) {
+		// Load the page once; the three queries below then find it
+		// in the native page cache.
+		gotoPage(page);
+		LinkInfo links[] = getPageLinksInternal(page);
+		RectF widgetAreas[] = getWidgetAreasInternal(page);
+		refreshAnnotations(page);
+		return new PageMetadata(links, widgetAreas, copyOf(annotationLists.get(page)));
 	}
 
 	public synchronized RectF [] searchPage(int page, String text) {
@@ -271,57 +593,147 @@ public class MuPDFCore
 		return textAsHtml();
 	}
 
-	public synchronized TextWord [][] textLines(int page) {
+	public synchronized TextPage textPage(int page) {
 		gotoPage(page);
-		TextChar[][][][] chars = text();
-
-		// The text of the page held in a hierarchy (blocks, lines, spans).
-		// Currently we don't need to distinguish the blocks level or
-		// the spans, and we need to collect the text into words.
-		ArrayList<TextWord[]> lns = new ArrayList<TextWord[]>();
+		if (!noFlatText) {
+			try {
+				return textPageInternal();
+			} catch (UnsatisfiedLinkError e) {
+				Log.e("MuPDFCore", "No native flat text", e);
+				noFlatText = true;
+			}
+		}
+		// The native hierarchy (blocks, lines, spans, chars) is
+		// flattened straight away, so that only primitive arrays
+		// outlive this call.
+		return TextPage.fromChars(text());
+	}
 
-		for (TextChar[][][] bl: chars) {
-			if (bl == null)
-				continue;
-			for (TextChar[][] ln: bl) {
-				ArrayList<TextWord> wds = new ArrayList<TextWord>();
-				TextWord wd = new TextWord();
-
-				for (TextChar[] sp: ln) {
-					for (TextChar tc: sp) {
-						if (tc.c != ' ') {
-							wd.Add(tc);
-						} else if (wd.w.length() > 0) {
-							wds.add(wd);
-							wd = new TextWord();
-						}
-					}
-				}
+	public TextWord [][] textLines(int page) {
+		return textPage(page).toTextLines();
+	}
 
-				if (wd.w.length() > 0)
-					wds.add(wd);
+	/*
+	 * Stream the text of pages firstPage..lastPage (inclusive) to out,
+	 * without holding more than one page in memory. The core is not
+	 * locked for the duration, so this is best called from a background
+	 * thread while the document stays on screen. Returns false if the
+	 * listener cancelled the export. out is flushed but not closed, also
+	 * when the export is cancelled or fails, so that the pages already
+	 * written reach it.
+	 */
+	public boolean exportText(int firstPage, int lastPage, TextExport.Format format,
+			Writer out, TextExport.Listener listener) throws IOException {
+		if (firstPage < 0 || lastPage >= countPages() || firstPage > lastPage)
+			throw new IllegalArgumentException();
 
-				if (wds.size() > 0)
-					lns.add(wds.toArray(new TextWord[wds.size()]));
-			}
-		}
+		return new TextExport(this, format, out).run(firstPage, lastPage, listener);
+	}
 
-		return lns.toArray(new TextWord[lns.size()][]);
+	// As above, writing UTF-8 to out
+	public boolean exportText(int firstPage, int lastPage, TextExport.Format format,
+			OutputStream out, TextExport.Listener listener) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		return exportText(firstPage, lastPage, format, writer, listener);
 	}
 
-	public synchronized void addMarkupAnnotation(int page, PointF[] quadPoints, Annotation.Type type) {
+	/*
+	 * The annotation edits return how the page's annotation list changed,
+	 * by annotation id, so that views can update their copy of it.
+	 */
+	public synchronized AnnotationDiff addMarkupAnnotation(int page, PointF[] quadPoints, Annotation.Type type) {
 		gotoPage(page);
+		knownAnnotations(page);
 		addMarkupAnnotationInternal(quadPoints, type.ordinal());
+		return refreshAnnotations(page);
 	}
 
-	public synchronized void addInkAnnotation(int page, PointF[][] arcs) {
+	public synchronized AnnotationDiff addInkAnnotation(int page, PointF[][] arcs) {
 		gotoPage(page);
+		knownAnnotations(page);
 		addInkAnnotationInternal(arcs);
+		return refreshAnnotations(page);
 	}
 
-	public synchronized void deleteAnnotation(int page, int annot_index) {
+	public synchronized AnnotationDiff deleteAnnotation(int page, int annot_index) {
 		gotoPage(page);
+		knownAnnotations(page);
 		deleteAnnotationInternal(annot_index);
+		return refreshAnnotations(page);
+	}
+
+	// Deleting an annotation already gone changes nothing
+	public synchronized AnnotationDiff deleteAnnotationById(int page, long id) {
+		gotoPage(page);
+		int index = indexOfId(knownAnnotations(page), id);
+		if (index >= 0)
+			deleteAnnotationInternal(index);
+		return refreshAnnotations(page);
+	}
+
+	/*
+	 * Apply all the edits of the batch under a single lock, loading each
+	 * affected page once. Returns the pages changed and the area changed
+	 * on each, for the caller to redraw.
+	 */
+	public synchronized AnnotationBatch.Result applyAnnotations(AnnotationBatch batch) {
+		AnnotationBatch.Result result = new AnnotationBatch.Result();
+		RectF area = new RectF();
+
+		// Deletions, by id or by index, become the set of indices to delete
+		// on each page as it is. An annotation named twice is deleted once,
+		// and those missing or out of range are ignored.
+		SparseArray<TreeSet<Integer>> deletions = new SparseArray<TreeSet<Integer>>();
+		for (AnnotationBatch.Edit edit : batch.edits()) {
+			if (edit.kind != AnnotationBatch.DELETE)
+				continue;
+			if (annotationLists.get(edit.page) == null)
+				gotoPage(edit.page);
+			Annotation annotations[] = knownAnnotations(edit.page);
+			int index = edit.id != 0 ? indexOfId(annotations, edit.id) : edit.index;
+			if (index < 0 || index >= annotations.length)
+				continue;
+			TreeSet<Integer> indices = deletions.get(edit.page);
+			if (indices == null) {
+				indices = new TreeSet<Integer>(Collections.reverseOrder());
+				deletions.put(edit.page, indices);
+			}
+			indices.add(index);
+		}
+
+		int page = -1;
+		for (AnnotationBatch.Edit edit : batch.ordered()) {
+			if (edit.page != page) {
+				if (page >= 0)
+					result.addDiff(refreshAnnotations(page));
+				page = edit.page;
+				gotoPage(page);
+				// Deletions first, highest index first, so that none
+				// shifts the indices of those still to come
+				Annotation annotations[] = knownAnnotations(page);
+				TreeSet<Integer> indices = deletions.get(page);
+				if (indices != null) {
+					for (int index : indices) {
+						deleteAnnotationInternal(index);
+						result.include(page, annotations[index]);
+					}
+				}
+			}
+
+			switch (edit.kind) {
+			case AnnotationBatch.MARKUP:
+				addMarkupAnnotationInternal(edit.quadPoints, edit.type.ordinal());
+				result.include(page, AnnotationBatch.markupBounds(edit.quadPoints, area));
+				break;
+			case AnnotationBatch.INK:
+				addInkAnnotationInternal(edit.arcs);
+				result.include(page, AnnotationBatch.inkBounds(edit.arcs, area));
+				break;
+			}
+		}
+		if (page >= 0)
+			result.addDiff(refreshAnnotations(page));
+		return result;
 	}
 
 	public synchronized boolean hasOutline() {
@@ -344,7 +756,284 @@ public class MuPDFCore
 		return hasChangesInternal();
 	}
 
-	public synchronized void save() {
+	// As save(SaveListener), holding up the calling thread for the whole save
+	public void save() {
+		try {
+			if (!save(null))
+				saveInPlace();
+		} catch (IOException e) {
+			Log.e("MuPDFCore", "Cannot save " + filePath, e);
+		}
+	}
+
+	// Only append the changes where the native library can
+	private void saveChanges() {
+		if (!noIncrementalSave) {
+			try {
+				saveIncrementalInternal();
+				return;
+			} catch (UnsatisfiedLinkError e) {
+				Log.e("MuPDFCore", "No native incremental save", e);
+				noIncrementalSave = true;
+			}
+		}
 		saveInternal();
 	}
+
+	/*
+	 * Write the stamps into their pages as images, so that the document
+	 * carries them without the pages being rasterised. Each distinct
+	 * picture is stored once, however many stamps show it. Stamp positions
+	 * are in PDF units, y upwards from the bottom of the page, as for
+	 * PdfBitmap. The lock is taken a page at a time so rendering can go on
+	 * between pages. The changes still have to be saved. Stamps already
+	 * written by an earlier call, whose save may have failed, are not
+	 * written again. Call off the UI thread. Returns the stamps in the
+	 * document, or null if the native library cannot do it, in which case
+	 * no stamp was placed, though images may have been added unused.
+	 * Throws MissingStampException, before anything is written, if a
+	 * stamp's image cannot be read back.
+	 */
+	public ArrayList<PdfBitmap> flattenStamps(PdfBitmap stamps[], SaveListener listener) throws MissingStampException {
+		if (noStampSupport)
+			return null;
+		if (stamps.length == 0)
+			return new ArrayList<PdfBitmap>();
+
+		for (PdfBitmap stamp : stamps) {
+			synchronized (this) {
+				if (placedStamps.contains(stamp))
+					continue;
+			}
+			stamp.loadImage();
+			if (stamp.isImageMissing())
+				throw new MissingStampException("No image for the stamp " + stamp);
+		}
+
+		PdfBitmap sorted[] = stamps.clone();
+		Arrays.sort(sorted, new Comparator<PdfBitmap>() {
+			public int compare(PdfBitmap a, PdfBitmap b) {
+				return a.getPageNumber() - b.getPageNumber();
+			}
+		});
+
+		ArrayList<PdfBitmap> written = new ArrayList<PdfBitmap>();
+		IdentityHashMap<Bitmap, Integer> byImage = new IdentityHashMap<Bitmap, Integer>();
+		HashMap<Long, ArrayList<Bitmap>> byContent = new HashMap<Long, ArrayList<Bitmap>>();
+		try {
+			int i = 0;
+			while (i < sorted.length) {
+				int page = sorted[i].getPageNumber();
+				synchronized (this) {
+					gotoPage(page);
+					for (; i < sorted.length && sorted[i].getPageNumber() == page; i++) {
+						PdfBitmap stamp = sorted[i];
+						if (placedStamps.contains(stamp)) {
+							written.add(stamp);
+							continue;
+						}
+						int image = imageIndex(stamp, byImage, byContent);
+						if (image < 0)
+							continue;
+						float x0 = stamp.getPdfX() - stamp.getWidth() / 2.0f;
+						float y0 = stamp.getPdfY() - stamp.getHeight() / 2.0f;
+						if (placeImageInternal(image, x0, y0, x0 + stamp.getWidth(), y0 + stamp.getHeight())) {
+							placedStamps.add(stamp);
+							written.add(stamp);
+						}
+					}
+				}
+				if (listener != null)
+					listener.onSaveProgress(100 * i / sorted.length);
+			}
+		} catch (UnsatisfiedLinkError e) {
+			Log.e("MuPDFCore", "No native stamp flattening", e);
+			noStampSupport = true;
+			if (written.isEmpty())
+				return null;
+		} finally {
+			if (!noStampSupport && !endImages())
+				written = null;
+		}
+		return written;
+	}
+
+	// False if the native library cannot finish the images, in which case
+	// none of those placed can be relied on
+	private synchronized boolean endImages() {
+		try {
+			endImagesInternal();
+			return true;
+		} catch (UnsatisfiedLinkError e) {
+			Log.e("MuPDFCore", "No native stamp flattening", e);
+			noStampSupport = true;
+			return false;
+		}
+	}
+
+	// The document's copy of the stamp's image, added on first use; -1 if it cannot be added
+	private int imageIndex(PdfBitmap stamp, IdentityHashMap<Bitmap, Integer> byImage, HashMap<Long, ArrayList<Bitmap>> byContent) {
+		Bitmap bitmap = stamp.getBitmapImage();
+		if (bitmap == null || bitmap.isRecycled())
+			return -1;
+		Integer index = byImage.get(bitmap);
+		if (index != null)
+			return index;
+
+		// A different Bitmap object may still hold the same picture
+		Long hash = stamp.getContentHash();
+		ArrayList<Bitmap> same = byContent.get(hash);
+		if (same == null) {
+			same = new ArrayList<Bitmap>(1);
+			byContent.put(hash, same);
+		}
+		for (Bitmap other : same) {
+			if (other.sameAs(bitmap)) {
+				index = byImage.get(other);
+				byImage.put(bitmap, index);
+				return index;
+			}
+		}
+
+		index = addImageInternal(bitmap);
+		byImage.put(bitmap, index);
+		if (index >= 0)
+			same.add(bitmap);
+		return index;
+	}
+
+	public interface SaveListener {
+		void onSaveProgress(int percent);
+	}
+
+	// Thrown by save when there is not the room beside the document to write it
+	public static class NoSpaceException extends IOException {
+		public NoSpaceException(String message) {
+			super(message);
+		}
+	}
+
+	// Thrown by flattenStamps when a stamp has lost its image
+	public static class MissingStampException extends IOException {
+		public MissingStampException(String message) {
+			super(message);
+		}
+	}
+
+	/*
+	 * Save the changes without ever leaving the document half written.
+	 * The file is copied to <name>.tmp beside it without the lock, the
+	 * changes are appended to the copy as an incremental update, and the
+	 * copy is synced to disk and renamed over the document, so the
+	 * document is either as it was or as saved, even if the process dies
+	 * part way. The lock is only held while the changes are appended, so
+	 * rendering goes on during the copy. Where the native library cannot
+	 * append to a copy the changes are appended to the document itself,
+	 * which is not safe against a failure part way. Call off the UI
+	 * thread. Returns false if there is no file to save to; throws
+	 * NoSpaceException if the volume has not the room for the copy.
+	 */
+	public boolean save(SaveListener listener) throws IOException {
+		if (filePath == null)
+			return false;
+
+		synchronized (saveLock) {
+			if (!hasChanges())
+				return true;
+			if (!noSaveCopy && saveCopy(listener))
+				return true;
+
+			File dir = new File(filePath).getAbsoluteFile().getParentFile();
+			checkSpace(dir, SAVE_MARGIN);
+			saveInPlace();
+			if (listener != null)
+				listener.onSaveProgress(100);
+			return true;
+		}
+	}
+
+	private synchronized void saveInPlace() {
+		saveChanges();
+	}
+
+	// False if the native library cannot append to a copy, in which case
+	// neither the document nor its file were changed
+	private boolean saveCopy(SaveListener listener) throws IOException {
+		File document = new File(filePath).getAbsoluteFile();
+		File temp = new File(document.getPath() + ".tmp");
+		checkSpace(document.getParentFile(), document.length() + SAVE_MARGIN);
+
+		try {
+			// The copy is nine tenths of the progress; the document's file
+			// does not change while saveLock is held
+			copyFile(document, temp, listener);
+			synchronized (this) {
+				try {
+					if (!saveIncrementalToFileInternal(temp.getPath()))
+						throw new IOException("Cannot append the changes to " + temp);
+				} catch (UnsatisfiedLinkError e) {
+					Log.e("MuPDFCore", "No native save to a copy", e);
+					noSaveCopy = true;
+					return false;
+				}
+			}
+			sync(temp);
+			if (!temp.renameTo(document))
+				throw new IOException("Cannot replace " + filePath + " with " + temp);
+		} finally {
+			temp.delete();
+		}
+
+		synchronized (this) {
+			try {
+				rebaseInternal(document.getPath());
+			} catch (UnsatisfiedLinkError e) {
+				// The document still reckons offsets from the file it
+				// opened, so only a full rewrite can follow safely
+				Log.e("MuPDFCore", "No native rebase; later saves rewrite the document", e);
+				noSaveCopy = true;
+				noIncrementalSave = true;
+			}
+		}
+		if (listener != null)
+			listener.onSaveProgress(100);
+		return true;
+	}
+
+	private static void checkSpace(File dir, long needed) throws NoSpaceException {
+		if (dir != null && dir.getUsableSpace() < needed)
+			throw new NoSpaceException("Not enough space in " + dir + " to save " + needed + " bytes");
+	}
+
+	private static void copyFile(File from, File to, SaveListener listener) throws IOException {
+		long length = from.length();
+		long done = 0;
+		byte buffer[] = new byte[64 * 1024];
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					out.write(buffer, 0, n);
+					done += n;
+					if (listener != null && length > 0)
+						listener.onSaveProgress((int)(90 * done / length));
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void sync(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
 }
@@ -1,12 +1,15 @@
 package com.artifex.mupdfdemo;
 
+import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 
 import com.artifex.utils.DigitalizedEventCallback;
 import com.artifex.utils.PdfBitmap;
+import com.artifex.utils.PdfBitmapFiles;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -21,6 +24,7 @@ import android.database.Cursor;
 import android.graphics.Color;
 import android.graphics.Point;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.text.Editable;
@@ -53,6 +57,8 @@ public class MuPDFFragment extends Fragment implements FilePicker.FilePickerSupp
     public static final String PARAM_SHOW_CONTROLS = "paramShowControls";
     public static final String PARAM_MODE_SIGN = "doSign";
 	public static final String PARAM_PASSWORD_PDF = "paramPasswordPdf";
+	// Reflow mode lays the text out natively rather than in a WebView
+	public static final String PARAM_REFLOW_TEXT_LAYOUT = "paramReflowTextLayout";
 
     /* State restoration */
     private static final String BUNDLE_FILENAME = "savedFileName";
@@ -232,7 +238,7 @@ public class MuPDFFragment extends Fragment implements FilePicker.FilePickerSupp
 		System.out.println("Trying to open " + path);
 		try
 		{
-			core = new MuPDFCore(mContext, path);
+			core = new MuPDFCore(mContext, path, MuPDFCore.storeLimitFor(mContext));
 			// New file: drop the old outline data
 			OutlineActivityData.set(null);
 		}
@@ -251,7 +257,7 @@ public class MuPDFFragment extends Fragment implements FilePicker.FilePickerSupp
 		System.out.println("Trying to open byte buffer");
 		try
 		{
-			core = new MuPDFCore(mContext, buffer, magic);
+			core = new MuPDFCore(mContext, buffer, magic, MuPDFCore.storeLimitFor(mContext));
 			// New file: drop the old outline data
 			OutlineActivityData.set(null);
 		}
@@ -274,6 +280,11 @@ public class MuPDFFragment extends Fragment implements FilePicker.FilePickerSupp
 
 		mAlertBuilder = new AlertDialog.Builder(mContext);
 
+		// Stamps saved with the instance state keep their images here, out
+		// of the cache directory, which the system may clear meanwhile
+		File filesDir = Build.VERSION.SDK_INT >= 21 ? getActivity().getNoBackupFilesDir() : getActivity().getFilesDir();
+		PdfBitmapFiles.setDirectory(new File(filesDir, "stamps"));
+
 		if (core == null) {
 			core = (MuPDFCore)getActivity().getLastNonConfigurationInstance();
 
@@ -488,6 +499,11 @@ public class MuPDFFragment extends Fragment implements FilePicker.FilePickerSupp
 		mDocView.setAdapter(adapter);
         mDocView.setEventCallback(eventCallback);
 		mDocView.setPdfBitmapList(pdfBitmaps);
+		if (savedInstanceState != null && savedInstanceState.containsKey("Stamps")) {
+			// Their images are read back as their pages are shown
+			ArrayList<PdfBitmap> stamps = savedInstanceState.getParcelableArrayList("Stamps");
+			mDocView.setPdfBitmapList(stamps);
+		}
 
 		mSearchTask = new SearchTask(context, core) {
 			@Override
@@ -682,7 +698,8 @@ public class MuPDFFragment extends Fragment implements FilePicker.FilePickerSupp
 	private void reflowModeSet(boolean reflow)
 	{
 		mReflow = reflow;
-		mDocView.setAdapter(mReflow ? new MuPDFReflowAdapter(mContext, core) : new MuPDFPageAdapter(getActivity(), this, core));
+		boolean textLayout = getArguments() != null && getArguments().getBoolean(PARAM_REFLOW_TEXT_LAYOUT);
+		mDocView.setAdapter(mReflow ? new MuPDFReflowAdapter(mContext, core, textLayout) : new MuPDFPageAdapter(getActivity(), this, core));
 		mReflowButton.setColorFilter(mReflow ? Color.argb(0xFF, 172, 114, 37) : Color.argb(0xFF, 255, 255, 255));
 		setButtonEnabled(mAnnotButton, !reflow);
 		setButtonEnabled(mSearchButton, !reflow);
@@ -722,6 +739,9 @@ public class MuPDFFragment extends Fragment implements FilePicker.FilePickerSupp
 
 		if (mReflow)
 			outState.putBoolean("ReflowMode", true);
+
+		if (mDocView != null)
+			outState.putParcelableArrayList("Stamps", new ArrayList<PdfBitmap>(mDocView.getBitmapList()));
 	}
 
 	@Override
@@ -758,6 +778,10 @@ public class MuPDFFragment extends Fragment implements FilePicker.FilePickerSupp
 		eventCallback = null;
 		core = null;
 
+		// The stamps' images are only kept for this document to be restored
+		if (getActivity() == null || !getActivity().isChangingConfigurations())
+			PdfBitmapFiles.deleteAll();
+
 		// Android is not releasing the memory recycled from the bitmaps on certain circumstances, which leads to OutOfMemory errors.
 		// Somehow the gc is not called automatically in those situations...
 		//
@@ -1239,6 +1263,14 @@ public class MuPDFFragment extends Fragment implements FilePicker.FilePickerSupp
         }
     }
 
+	public void applyStamps(StampBatch batch) {
+		if (mDocView != null) {
+			mDocView.applyStamps(batch);
+		} else {
+			Log.e(TAG, "Couldn't apply stamps. DocView is NULL.");
+		}
+	}
+
 	public void setPdfBitmapList(Collection<PdfBitmap> pdfBitmaps) {
 		this.pdfBitmaps = pdfBitmaps;
 		if (mDocView != null) {
@@ -1255,6 +1287,25 @@ public class MuPDFFragment extends Fragment implements FilePicker.FilePickerSupp
 		}
 	}
 
+	/**
+	 * Writes the stamps into the document and saves it, in the background.
+	 * The stamps written leave the stamp layer, as the pages now show them.
+	 */
+	public void saveStamps() {
+		if (core == null || mDocView == null) {
+			Log.e(TAG, "Couldn't save stamps. Document not open.");
+			return;
+		}
+		new SaveTask(mContext, core, mDocView.getBitmapList()) {
+			@Override
+			protected void onSaveFinished(boolean saved) {
+				if (!saved)
+					showInfo(getString(getFailureMessage()));
+				mDocView.redrawAll();
+			}
+		}.go();
+	}
+
     public boolean removeBitmapOnPosition(float x, float y) {
         boolean removed = false;
         if (mDocView != null) {
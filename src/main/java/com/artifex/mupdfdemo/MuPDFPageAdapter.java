@@ -1,32 +1,64 @@
 package com.artifex.mupdfdemo;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 
 import com.artifex.utils.PdfBitmap;
+import com.artifex.utils.PdfBitmapFiles;
+import com.artifex.utils.PdfBitmapStore;
 
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Set;
 
-public class MuPDFPageAdapter extends BaseAdapter {
+public class MuPDFPageAdapter extends BaseAdapter implements MemoryManager.Trimmable {
+	// Rough cost of remembering a page's size
+	private static final int PAGE_SIZE_BYTES = 48;
+
 	private final Context mContext;
 	private final FilePicker.FilePickerSupport mFilePickerSupport;
 	private final MuPDFCore mCore;
 	private final SparseArray<PointF> mPageSizes = new SparseArray<PointF>();
-    private SparseArray<MuPDFPageView> pages = new SparseArray<MuPDFPageView>();
-    private Collection<PdfBitmap> pdfBitmapList; // Each signature for each page.
+    private final SparseArray<MuPDFPageView> pages = new SparseArray<MuPDFPageView>(); // The views in use, by page
+    private PdfBitmapStore pdfBitmapList; // Each signature for each page.
     private int numSignature;
+	private final StampImageCache mStampImages = new StampImageCache();
 
 	public MuPDFPageAdapter(Context c, FilePicker.FilePickerSupport filePickerSupport, MuPDFCore core) {
 		mContext = c;
 		mFilePickerSupport = filePickerSupport;
 		mCore = core;
+		MemoryManager.getInstance().register(this, MemoryManager.PRIORITY_PAGES);
+	}
+
+	/*
+	 * The page sizes, each of which takes loading the page to find again,
+	 * go only when memory is at its shortest. The page views kept for reuse
+	 * are the reader view's, and it gives back their bitmaps.
+	 */
+	public long trim(int level) {
+		long freed = 0;
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+			freed += (long) mPageSizes.size() * PAGE_SIZE_BYTES;
+			mPageSizes.clear();
+		}
+		return freed;
+	}
+
+	// Note which view shows position, forgetting the views no longer shown
+	private void trackView(int position, MuPDFPageView pageView) {
+		for (int i = pages.size() - 1; i >= 0; i--) {
+			MuPDFPageView view = pages.valueAt(i);
+			if (view == pageView || view.getParent() == null)
+				pages.removeAt(i);
+		}
+		pages.put(position, pageView);
 	}
 
 	public int getCount() {
@@ -43,29 +75,17 @@ public class MuPDFPageAdapter extends BaseAdapter {
 
 	public View getView(final int position, View convertView, ViewGroup parent) {
 
-        final MuPDFPageView pageView;
-        if (pages.get(position) == null) {
-            pageView = new MuPDFPageView(mContext, mFilePickerSupport, mCore, new Point(parent.getWidth(), parent.getHeight()), this);
-            pages.put(position, pageView);
-        } else {
-            pageView = pages.get(position);
-        }
-
-		//Limit the pages cache to improve memory usage
-		if(pages.size()>3){
-			if(position>1) {
-				MuPDFPageView previous = pages.get(position - 2);
-				if(previous!=null){
-					pages.removeAt(pages.indexOfValue(previous));
-					previous=null;
-				}
-				MuPDFPageView post = pages.get(position + 2);
-				if (post != null) {
-					pages.removeAt(pages.indexOfValue(post));
-					post = null;
-				}
-			}
+		// Views are made once and then passed back to us for reuse, keeping
+		// their bitmaps and dialogs, so changing page allocates next to nothing
+		final MuPDFPageView pageView;
+		Point parentSize = new Point(parent.getWidth(), parent.getHeight());
+		if (convertView instanceof MuPDFPageView) {
+			pageView = (MuPDFPageView) convertView;
+			pageView.setParentSize(parentSize);
+		} else {
+			pageView = new MuPDFPageView(mContext, mFilePickerSupport, mCore, parentSize, this);
 		}
+		trackView(position, pageView);
 
 		PointF pageSize = mPageSizes.get(position);
 		if (pageSize != null) {
@@ -99,17 +119,33 @@ public class MuPDFPageAdapter extends BaseAdapter {
 		return pageView;
 	}
 
-    public Collection<PdfBitmap> getPdfBitmapList() {
+    public PdfBitmapStore getPdfBitmapList() {
 		if (pdfBitmapList == null) {
-			pdfBitmapList = new HashSet<PdfBitmap>();
+			pdfBitmapList = new PdfBitmapStore();
 		}
         return pdfBitmapList;
     }
 
+    /**
+     * The bitmaps are indexed by page and position, so any other collection
+     * is wrapped in a PdfBitmapStore, which keeps it up to date with the
+     * stamps added and removed; see PdfBitmapStore.wrap().
+     */
     public void setPdfBitmapList(Collection<PdfBitmap> pdfBitmapList) {
-        this.pdfBitmapList = pdfBitmapList;
+		if (pdfBitmapList == null || pdfBitmapList instanceof PdfBitmapStore) {
+			this.pdfBitmapList = (PdfBitmapStore) pdfBitmapList;
+		} else {
+			this.pdfBitmapList = PdfBitmapStore.wrap(pdfBitmapList);
+		}
+		if (pdfBitmapList != null)
+			for (PdfBitmap pdfBitmap : pdfBitmapList)
+				PdfBitmapFiles.storeLater(pdfBitmap);
     }
 
+	public StampImageCache getStampImageCache() {
+		return mStampImages;
+	}
+
     public int getNumSignature() {
         return numSignature;
     }
@@ -126,11 +162,33 @@ public class MuPDFPageAdapter extends BaseAdapter {
 		}
 	}
 
+	/**
+	 * Make all the changes of the batch to the stamps. Returns the pages
+	 * whose stamps changed.
+	 */
+	public SparseBooleanArray applyStamps(StampBatch batch) {
+		SparseBooleanArray pages = new SparseBooleanArray();
+		PdfBitmapStore store = getPdfBitmapList();
+		for (StampBatch.Edit edit : batch.edits()) {
+			PdfBitmap stamp = edit.stamp;
+			boolean changed = edit.kind == StampBatch.ADD ? store.add(stamp) : store.remove(stamp);
+			if (!changed)
+				continue;
+			if (edit.kind == StampBatch.ADD)
+				PdfBitmapFiles.storeLater(stamp);
+			if (stamp.getType() == PdfBitmap.Type.SIGNATURE)
+				numSignature += edit.kind == StampBatch.ADD ? 1 : -1;
+			pages.put(stamp.getPageNumber(), true);
+		}
+		return pages;
+	}
+
 	public void addBitmap(PdfBitmap pdfBitmap) {
 		if (pdfBitmap.getType() == PdfBitmap.Type.SIGNATURE) { //mAdapter null ???
 			numSignature = numSignature + 1;
 		}
-		getPdfBitmapList().add(pdfBitmap);
+		if (getPdfBitmapList().add(pdfBitmap))
+			PdfBitmapFiles.storeLater(pdfBitmap);
 	}
 
 }
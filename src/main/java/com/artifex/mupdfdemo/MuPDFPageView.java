@@ -16,6 +16,7 @@ import android.graphics.RectF;
 import android.net.Uri;
 import android.os.Build;
 import android.text.method.PasswordTransformationMethod;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.WindowManager;
 import android.view.inputmethod.EditorInfo;
@@ -87,13 +88,18 @@ class PassClickResultSignature extends PassClickResult {
 }
 
 public class MuPDFPageView extends PageView implements MuPDFView {
+	private static final String TAG = "MuPDFPageView";
 	final private FilePicker.FilePickerSupport mFilePickerSupport;
 	private final MuPDFCore mCore;
 	private AsyncTask<Void,Void,PassClickResult> mPassClick;
 	private RectF mWidgetAreas[];
+	private RectIndex mWidgetIndex;
 	private Annotation mAnnotations[];
-	private int mSelectedAnnotationIndex = -1;
-	private AsyncTask<Void,Void,RectF[]> mLoadWidgetAreas;
+	// Set once an edit has changed the annotations since the page was set,
+	// after which the metadata's list of them is out of date
+	private boolean mAnnotationsEdited;
+	private RectIndex mAnnotationIndex;
+	private long mSelectedAnnotationId;  // 0 for none
 	private AsyncTask<Void,Void,Annotation[]> mLoadAnnotations;
 	private AlertDialog.Builder mTextEntryBuilder;
 	private AlertDialog.Builder mChoiceEntryBuilder;
@@ -106,9 +112,13 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 	private EditText mEditText;
 	private AsyncTask<String,Void,Boolean> mSetWidgetText;
 	private AsyncTask<String,Void,Void> mSetWidgetChoice;
-	private AsyncTask<PointF[],Void,Void> mAddStrikeOut;
-	private AsyncTask<PointF[][],Void,Void> mAddInk;
-	private AsyncTask<Integer,Void,Void> mDeleteAnnotation;
+	private AsyncTask<PointF[],Void,AnnotationDiff> mAddStrikeOut;
+	private AsyncTask<PointF[][],Void,AnnotationDiff> mAddInk;
+	private InkSimplifier mInkSimplifier;
+	private AsyncTask<Long,Void,AnnotationDiff> mDeleteAnnotation;
+	private final ArrayList<Long> mPendingDeletes = new ArrayList<Long>();
+	// Changed with the page, so that edits finishing later leave the view alone
+	private int mGeneration;
 	private AsyncTask<Void,Void,String> mCheckSignature;
 	private AsyncTask<Void,Void,Boolean> mSign;
 	private Runnable changeReporter;
@@ -129,15 +139,17 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 		});
 		mTextEntryBuilder.setPositiveButton(R.string.okay, new DialogInterface.OnClickListener() {
 			public void onClick(DialogInterface dialog, int which) {
+				final int page = mPageNumber;
+				final int generation = mGeneration;
 				mSetWidgetText = new AsyncTask<String,Void,Boolean> () {
 					@Override
 					protected Boolean doInBackground(String... arg0) {
-						return mCore.setFocusedWidgetText(mPageNumber, arg0[0]);
+						return mCore.setFocusedWidgetText(page, arg0[0]);
 					}
 					@Override
 					protected void onPostExecute(Boolean result) {
 						changeReporter.run();
-						if (!result)
+						if (!result && generation == mGeneration)
 							invokeTextDialog(mEditText.getText().toString());
 					}
 				};
@@ -244,11 +256,11 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 		float docRelX = (x - getLeft())/scale;
 		float docRelY = (y - getTop())/scale;
 
-		for (LinkInfo l: mLinks)
-			if (l.rect.contains(docRelX, docRelY))
-				return l;
+		if (mLinkIndex == null)
+			return null;
 
-		return null;
+		int i = mLinkIndex.hit(docRelX, docRelY);
+		return i >= 0 ? mLinks[i] : null;
 	}
 
 	private void invokeTextDialog(String text) {
@@ -320,12 +332,9 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 		boolean hit = false;
 		int i;
 
-		if (mAnnotations != null) {
-			for (i = 0; i < mAnnotations.length; i++)
-				if (mAnnotations[i].contains(docRelX, docRelY)) {
-					hit = true;
-					break;
-				}
+		if (mAnnotationIndex != null) {
+			i = mAnnotationIndex.hit(docRelX, docRelY);
+			hit = i >= 0;
 
 			if (hit) {
 				switch (mAnnotations[i].type) {
@@ -334,24 +343,21 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 				case SQUIGGLY:
 				case STRIKEOUT:
 				case INK:
-					mSelectedAnnotationIndex = i;
+					mSelectedAnnotationId = mAnnotations[i].getId();
 					setItemSelectBox(mAnnotations[i]);
 					return Hit.Annotation;
 				}
 			}
 		}
 
-		mSelectedAnnotationIndex = -1;
+		mSelectedAnnotationId = 0;
 		setItemSelectBox(null);
 
 		if (!mCore.javascriptSupported())
 			return Hit.Nothing;
 
-		if (mWidgetAreas != null) {
-			for (i = 0; i < mWidgetAreas.length && !hit; i++)
-				if (mWidgetAreas[i].contains(docRelX, docRelY))
-					hit = true;
-		}
+		if (!hit && mWidgetIndex != null)
+			hit = mWidgetIndex.hit(docRelX, docRelY) >= 0;
 
 		if (hit) {
 			mPassClick = new AsyncTask<Void,Void,PassClickResult>() {
@@ -413,10 +419,10 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 				line = new StringBuilder();
 			}
 
-			public void onWord(TextWord word) {
+			public void onWord(TextPage text, int word) {
 				if (line.length() > 0)
 					line.append(' ');
-				line.append(word.w);
+				text.appendWord(word, line);
 			}
 
 			public void onEndLine() {
@@ -453,8 +459,8 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 				rect = new RectF();
 			}
 
-			public void onWord(TextWord word) {
-				rect.union(word);
+			public void onWord(TextPage text, int word) {
+				text.unionWordBounds(word, rect);
 			}
 
 			public void onEndLine() {
@@ -470,17 +476,18 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 		if (quadPoints.size() == 0)
 			return false;
 
-		mAddStrikeOut = new AsyncTask<PointF[],Void,Void>() {
+		final int page = mPageNumber;
+		final int generation = mGeneration;
+		mAddStrikeOut = new AsyncTask<PointF[],Void,AnnotationDiff>() {
 			@Override
-			protected Void doInBackground(PointF[]... params) {
-				addMarkup(params[0], type);
-				return null;
+			protected AnnotationDiff doInBackground(PointF[]... params) {
+				return addMarkup(page, params[0], type);
 			}
 
 			@Override
-			protected void onPostExecute(Void result) {
-				loadAnnotations();
-				update();
+			protected void onPostExecute(AnnotationDiff result) {
+				if (generation == mGeneration)
+					onAnnotationsChanged(result);
 			}
 		};
 
@@ -492,62 +499,90 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 	}
 
 	public void deleteSelectedAnnotation() {
-		if (mSelectedAnnotationIndex != -1) {
-			if (mDeleteAnnotation != null)
-				mDeleteAnnotation.cancel(true);
+		if (mSelectedAnnotationId != 0) {
+			// Deletions made while one is in progress wait, and then go
+			// together, so that only one runs at a time and none is lost
+			if (!mPendingDeletes.contains(mSelectedAnnotationId))
+				mPendingDeletes.add(mSelectedAnnotationId);
+			if (mDeleteAnnotation == null)
+				deletePending();
+
+			mSelectedAnnotationId = 0;
+			setItemSelectBox(null);
+		}
+	}
 
-			mDeleteAnnotation = new AsyncTask<Integer,Void,Void>() {
-				@Override
-				protected Void doInBackground(Integer... params) {
-					mCore.deleteAnnotation(mPageNumber, params[0]);
-					return null;
-				}
+	private void deletePending() {
+		final int page = mPageNumber;
+		final int generation = mGeneration;
+		final AnnotationBatch batch = new AnnotationBatch();
+		for (long id : mPendingDeletes)
+			batch.deleteById(page, id);
+		mPendingDeletes.clear();
 
-				@Override
-				protected void onPostExecute(Void result) {
-					loadAnnotations();
-					update();
-				}
-			};
+		mDeleteAnnotation = new AsyncTask<Long,Void,AnnotationDiff>() {
+			@Override
+			protected AnnotationDiff doInBackground(Long... params) {
+				return mCore.applyAnnotations(batch).getDiff(page);
+			}
 
-			mDeleteAnnotation.execute(mSelectedAnnotationIndex);
+			@Override
+			protected void onPostExecute(AnnotationDiff result) {
+				if (mDeleteAnnotation == this)
+					mDeleteAnnotation = null;
+				// Not after a change of page, which reloads
+				if (generation == mGeneration)
+					onAnnotationsChanged(result);
+				if (mDeleteAnnotation == null && !mPendingDeletes.isEmpty())
+					deletePending();
+			}
+		};
 
-			mSelectedAnnotationIndex = -1;
-			setItemSelectBox(null);
-		}
+		mDeleteAnnotation.execute();
 	}
 
 	public void deselectAnnotation() {
-		mSelectedAnnotationIndex = -1;
+		mSelectedAnnotationId = 0;
 		setItemSelectBox(null);
 	}
 
+	// Simplification applied to ink before it is saved; null, the default,
+	// saves every point as drawn
+	public void setInkSimplifier(InkSimplifier simplifier) {
+		mInkSimplifier = simplifier;
+	}
+
 	public boolean saveDraw() {
 		PointF[][] path = getDraw();
 
 		if (path == null)
 			return false;
 
-		if (mAddInk != null) {
-			mAddInk.cancel(true);
-			mAddInk = null;
-		}
-		mAddInk = new AsyncTask<PointF[][],Void,Void>() {
+		// Not cancelling any ink still being added, which would lose it
+		final int page = mPageNumber;
+		final int generation = mGeneration;
+		mAddInk = new AsyncTask<PointF[][],Void,AnnotationDiff>() {
 			@Override
-			protected Void doInBackground(PointF[][]... params) {
-				mCore.addInkAnnotation(mPageNumber, params[0]);
-				return null;
+			protected AnnotationDiff doInBackground(PointF[][]... params) {
+				PointF arcs[][] = params[0];
+				InkSimplifier simplifier = mInkSimplifier;
+				if (simplifier != null) {
+					InkSimplifier.Result result = simplifier.simplify(arcs);
+					Log.d(TAG, "Ink annotation simplified: " + result);
+					arcs = result.arcs;
+				}
+				return mCore.addInkAnnotation(page, arcs);
 			}
 
 			@Override
-			protected void onPostExecute(Void result) {
-				loadAnnotations();
-				update();
+			protected void onPostExecute(AnnotationDiff result) {
+				if (generation == mGeneration)
+					onAnnotationsChanged(result);
 			}
 
 		};
 
-		mAddInk.execute(getDraw());
+		mAddInk.execute(path);
 		cancelDraw();
 
 		return true;
@@ -591,22 +626,66 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 	}
 
 	@Override
-	protected LinkInfo[] getLinkInfo() {
-		return mCore.getPageLinks(mPageNumber);
+	protected PageMetadata getPageMetadata() {
+		return mCore.getPageMetadata(mPageNumber);
 	}
 
 	@Override
-	protected TextWord[][] getText() {
-		return mCore.textLines(mPageNumber);
+	protected void onPageMetadata(PageMetadata metadata) {
+		super.onPageMetadata(metadata);
+		mWidgetAreas = metadata.widgetAreas;
+		mWidgetIndex = new RectIndex(metadata.widgetAreas);
+		// An edit may have changed or reloaded the annotations already
+		if (!mAnnotationsEdited && mLoadAnnotations == null) {
+			mAnnotations = metadata.annotations;
+			mAnnotationIndex = new RectIndex(metadata.annotations);
+		}
 	}
 
 	@Override
-	protected void addMarkup(PointF[] quadPoints, Annotation.Type type) {
-		mCore.addMarkupAnnotation(mPageNumber, quadPoints, type);
+	protected TextPage getText() {
+		return mCore.textPage(mPageNumber);
+	}
+
+	@Override
+	protected AnnotationDiff addMarkup(int page, PointF[] quadPoints, Annotation.Type type) {
+		return mCore.addMarkupAnnotation(page, quadPoints, type);
+	}
+
+	/*
+	 * The page's annotations have been edited: bring our list of them up
+	 * to date from the diff, and redraw only what the edit changed.
+	 */
+	public void onAnnotationsChanged(AnnotationDiff diff) {
+		mAnnotationsEdited = true;
+		if (diff == null) {
+			loadAnnotations();
+			update();
+			return;
+		}
+
+		if (mAnnotations != null && mLoadAnnotations == null) {
+			mAnnotations = diff.apply(mAnnotations);
+			mAnnotationIndex = new RectIndex(mAnnotations);
+		} else {
+			loadAnnotations();
+		}
+
+		if (!diff.isEmpty())
+			update(diff.getChangedArea());
+	}
+
+	/*
+	 * A form field has changed, possibly others through JavaScript, but
+	 * nothing outside the fields: redraw just the widget areas.
+	 */
+	public void onWidgetsChanged() {
+		update(mWidgetAreas);
 	}
 
 	private void loadAnnotations() {
 		mAnnotations = null;
+		mAnnotationIndex = null;
 		if (mLoadAnnotations != null)
 			mLoadAnnotations.cancel(true);
 		mLoadAnnotations = new AsyncTask<Void,Void,Annotation[]> () {
@@ -618,6 +697,8 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 			@Override
 			protected void onPostExecute(Annotation[] result) {
 				mAnnotations = result;
+				mAnnotationIndex = new RectIndex(result);
+				mLoadAnnotations = null;
 			}
 		};
 
@@ -626,21 +707,19 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 
 	@Override
 	public void setPage(final int page, PointF size) {
-		loadAnnotations();
-
-		mLoadWidgetAreas = new AsyncTask<Void,Void,RectF[]> () {
-			@Override
-			protected RectF[] doInBackground(Void... arg0) {
-				return mCore.getWidgetAreas(page);
-			}
-
-			@Override
-			protected void onPostExecute(RectF[] result) {
-				mWidgetAreas = result;
-			}
-		};
-
-		mLoadWidgetAreas.execute();
+		// The widget areas and annotations arrive with the rest of
+		// the page metadata, loaded by the super class, after any edit
+		// still running; that edit's own result is then not applied
+		finishEdits();
+		if (mLoadAnnotations != null) {
+			mLoadAnnotations.cancel(true);
+			mLoadAnnotations = null;
+		}
+		mAnnotations = null;
+		mAnnotationIndex = null;
+		mAnnotationsEdited = false;
+		mWidgetAreas = null;
+		mWidgetIndex = null;
 
 		super.setPage(page, size);
 	}
@@ -650,43 +729,43 @@ public class MuPDFPageView extends PageView implements MuPDFView {
 		// determined by the parent view groups during layout
 	}
 
+	@Override
+	public void recycle() {
+		cancelTasks();
+		mSelectedAnnotationId = 0;
+		super.recycle();
+	}
+
 	@Override
 	public void releaseResources() {
+		cancelTasks();
+		super.releaseResources();
+	}
+
+	// Edits are left to finish, as cancelling one still queued would lose
+	// it; their results are dropped, as the view is no longer on their page
+	private void finishEdits() {
+		if (!mPendingDeletes.isEmpty())
+			deletePending();
+		mGeneration++;
+		mSetWidgetText = null;
+		mSetWidgetChoice = null;
+		mAddStrikeOut = null;
+		mAddInk = null;
+		mDeleteAnnotation = null;
+	}
+
+	private void cancelTasks() {
+		finishEdits();
+
 		if (mPassClick != null) {
 			mPassClick.cancel(true);
 			mPassClick = null;
 		}
 
-		if (mLoadWidgetAreas != null) {
-			mLoadWidgetAreas.cancel(true);
-			mLoadWidgetAreas = null;
-		}
-
 		if (mLoadAnnotations != null) {
 			mLoadAnnotations.cancel(true);
 			mLoadAnnotations = null;
 		}
-
-		if (mSetWidgetText != null) {
-			mSetWidgetText.cancel(true);
-			mSetWidgetText = null;
-		}
-
-		if (mSetWidgetChoice != null) {
-			mSetWidgetChoice.cancel(true);
-			mSetWidgetChoice = null;
-		}
-
-		if (mAddStrikeOut != null) {
-			mAddStrikeOut.cancel(true);
-			mAddStrikeOut = null;
-		}
-
-		if (mDeleteAnnotation != null) {
-			mDeleteAnnotation.cancel(true);
-			mDeleteAnnotation = null;
-		}
-
-		super.releaseResources();
 	}
 }
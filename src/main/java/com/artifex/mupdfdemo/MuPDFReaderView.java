@@ -166,7 +166,7 @@ public class MuPDFReaderView extends ReaderView {
 					touch_start(x, y);
 					break;
 				case MotionEvent.ACTION_MOVE:
-					touch_move(x, y);
+					touch_move(event);
 					break;
 				case MotionEvent.ACTION_UP:
 					touch_up();
@@ -197,17 +197,27 @@ public class MuPDFReaderView extends ReaderView {
 		mY = y;
 	}
 
-	private void touch_move(float x, float y) {
+	private void touch_move(MotionEvent event) {
+
+		MuPDFView pageView = (MuPDFView)getDisplayedView();
+		if (pageView == null)
+			return;
+
+		// Take the points batched into this event too, not just the latest,
+		// so that fast strokes keep their shape
+		int history = event.getHistorySize();
+		for (int h = 0; h < history; h++)
+			touch_move(pageView, event.getHistoricalX(h), event.getHistoricalY(h));
+		touch_move(pageView, event.getX(), event.getY());
+	}
+
+	private void touch_move(MuPDFView pageView, float x, float y) {
 
 		float dx = Math.abs(x - mX);
 		float dy = Math.abs(y - mY);
 		if (dx >= TOUCH_TOLERANCE || dy >= TOUCH_TOLERANCE)
 		{
-			MuPDFView pageView = (MuPDFView)getDisplayedView();
-			if (pageView != null)
-			{
-				pageView.continueDraw(x, y);
-			}
+			pageView.continueDraw(x, y);
 			mX = x;
 			mY = y;
 		}
@@ -232,13 +242,40 @@ public class MuPDFReaderView extends ReaderView {
 				applyToChildren(new ReaderView.ViewMapper() {
 					@Override
 					void applyToView(View view) {
-						((MuPDFView) view).update();
+						if (view instanceof MuPDFPageView)
+							((MuPDFPageView) view).onWidgetsChanged();
+						else
+							((MuPDFView) view).update();
 					}
 				});
 			}
 		});
 	}
 
+	/*
+	 * Apply a batch of annotation edits in the background, then refresh
+	 * each affected page on screen once. The batch must not be changed
+	 * until it has been applied.
+	 */
+	public void applyAnnotations(final MuPDFCore core, final AnnotationBatch batch) {
+		new AsyncTask<Void,Void,AnnotationBatch.Result>() {
+			@Override
+			protected AnnotationBatch.Result doInBackground(Void... params) {
+				return core.applyAnnotations(batch);
+			}
+
+			@Override
+			protected void onPostExecute(AnnotationBatch.Result result) {
+				for (int i = 0; i < result.countPages(); i++) {
+					int page = result.getPage(i);
+					View v = getView(page);
+					if (v instanceof MuPDFPageView)
+						((MuPDFPageView) v).onAnnotationsChanged(result.getDiff(page));
+				}
+			}
+		}.execute();
+	}
+
 	protected void onMoveToChild(int i) {
 		if (SearchTaskResult.get() != null
 				&& SearchTaskResult.get().pageNumber != i) {
@@ -268,7 +305,11 @@ public class MuPDFReaderView extends ReaderView {
 
 	@Override
 	protected void onNotInUse(View v) {
-		((MuPDFView) v).releaseResources();
+		// Page views are kept ready for another page, bitmap and all
+		if (v instanceof PageView)
+			((PageView) v).recycle();
+		else
+			((MuPDFView) v).releaseResources();
 	}
 
 	@Override
@@ -10,10 +10,23 @@ import android.widget.BaseAdapter;
 public class MuPDFReflowAdapter extends BaseAdapter {
 	private final Context mContext;
 	private final MuPDFCore mCore;
+	private final boolean mUseTextLayout;
+	private final ReflowCache mCache;
+	private final ReflowTextCache mTextCache;
 
 	public MuPDFReflowAdapter(Context c, MuPDFCore core) {
+		this(c, core, false);
+	}
+
+	// useTextLayout selects laying out the page text natively with a
+	// StaticLayout over the HTML reflow shown in a WebView; the viewers
+	// choose it with MuPDFFragment.PARAM_REFLOW_TEXT_LAYOUT
+	public MuPDFReflowAdapter(Context c, MuPDFCore core, boolean useTextLayout) {
 		mContext = c;
 		mCore = core;
+		mUseTextLayout = useTextLayout;
+		mCache = useTextLayout ? null : new ReflowCache(core);
+		mTextCache = useTextLayout ? new ReflowTextCache(core) : null;
 	}
 
 	public int getCount() {
@@ -29,9 +42,22 @@ public class MuPDFReflowAdapter extends BaseAdapter {
 	}
 
 	public View getView(int position, View convertView, ViewGroup parent) {
+		if (mUseTextLayout) {
+			final MuPDFReflowTextView textView;
+			if (convertView instanceof MuPDFReflowTextView) {
+				textView = (MuPDFReflowTextView) convertView;
+			} else {
+				textView = new MuPDFReflowTextView(mContext, mTextCache, new Point(parent.getWidth(), parent.getHeight()));
+			}
+
+			textView.setPage(position, new PointF());
+
+			return textView;
+		}
+
 		final MuPDFReflowView reflowView;
-		if (convertView == null) {
-			reflowView = new MuPDFReflowView(mContext, mCore, new Point(parent.getWidth(), parent.getHeight()));
+		if (!(convertView instanceof MuPDFReflowView)) {
+			reflowView = new MuPDFReflowView(mContext, mCore, new Point(parent.getWidth(), parent.getHeight()), mCache);
 		} else {
 			reflowView = (MuPDFReflowView) convertView;
 		}
@@ -40,4 +66,12 @@ public class MuPDFReflowAdapter extends BaseAdapter {
 
 		return reflowView;
 	}
+
+	public ReflowCache getCache() {
+		return mCache;
+	}
+
+	public ReflowTextCache getTextCache() {
+		return mTextCache;
+	}
 }
@@ -0,0 +1,206 @@
+package com.artifex.mupdfdemo;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Point;
+import android.graphics.PointF;
+import android.graphics.RectF;
+import android.text.TextPaint;
+import android.util.TypedValue;
+import android.view.View;
+
+/*
+ * Reflow view that lays out the page's structured text itself with a
+ * StaticLayout, instead of going through HTML and a WebView.
+ */
+public class MuPDFReflowTextView extends View implements MuPDFView {
+	private static final float BASE_TEXT_SIZE_SP = 18.0f;
+	private static final float MARGIN_DP = 16.0f;
+
+	private final ReflowTextCache mCache;
+	private final Point mParentSize;
+	private final TextPaint mPaint;
+	private final int mMargin;
+	private int mPage;
+	private float mScale;
+	private ReflowTextLayout mLayout;
+	private AsyncTask<Void,Void,ReflowTextLayout> mLoadLayout;
+
+	public MuPDFReflowTextView(Context c, ReflowTextCache cache, Point parentSize) {
+		super(c);
+		mCache = cache;
+		mParentSize = parentSize;
+		mScale = 1.0f;
+		mPaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+		mPaint.setColor(Color.BLACK);
+		mMargin = (int)TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, MARGIN_DP,
+				c.getResources().getDisplayMetrics());
+		setBackgroundColor(Color.WHITE);
+	}
+
+	private float textSize() {
+		return TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, BASE_TEXT_SIZE_SP * mScale,
+				getResources().getDisplayMetrics());
+	}
+
+	private void relayout() {
+		if (mLoadLayout != null) {
+			mLoadLayout.cancel(true);
+			mLoadLayout = null;
+		}
+
+		final int page = mPage;
+		final int width = mParentSize.x;
+		final int height = mParentSize.y;
+		mPaint.setTextSize(textSize());
+
+		ReflowTextLayout layout = mCache.getLayout(page, width, height, mPaint.getTextSize());
+		if (layout != null) {
+			setLayout(layout);
+			return;
+		}
+
+		// Lay out on a copy of the paint, as ours may change meanwhile
+		final TextPaint paint = new TextPaint(mPaint);
+		mLoadLayout = new AsyncTask<Void,Void,ReflowTextLayout>() {
+			@Override
+			protected ReflowTextLayout doInBackground(Void... params) {
+				return mCache.loadLayout(page, width, height, mMargin, paint);
+			}
+
+			@Override
+			protected void onPostExecute(ReflowTextLayout result) {
+				mLoadLayout = null;
+				setLayout(result);
+			}
+		};
+		mLoadLayout.execute();
+	}
+
+	private void setLayout(ReflowTextLayout layout) {
+		boolean resized = mLayout == null || layout.getHeight() != mLayout.getHeight();
+		mLayout = layout;
+		if (resized)
+			requestLayout();
+		invalidate();
+	}
+
+	public void setPage(int page, PointF size) {
+		mPage = page;
+		mLayout = null;
+		relayout();
+	}
+
+	public int getPage() {
+		return mPage;
+	}
+
+	public void setScale(float scale) {
+		if (scale == mScale && mLayout != null)
+			return;
+		mScale = scale;
+		relayout();
+	}
+
+	public void blank(int page) {
+	}
+
+	public Hit passClickEvent(float x, float y) {
+		return Hit.Nothing;
+	}
+
+	public LinkInfo hitLink(float x, float y) {
+		return null;
+	}
+
+	public void selectText(float x0, float y0, float x1, float y1) {
+	}
+
+	public void deselectText() {
+	}
+
+	public boolean copySelection() {
+		return false;
+	}
+
+	public boolean markupSelection(Annotation.Type type) {
+		return false;
+	}
+
+	public void startDraw(float x, float y) {
+	}
+
+	public void continueDraw(float x, float y) {
+	}
+
+	public void cancelDraw() {
+	}
+
+	public boolean saveDraw() {
+		return false;
+	}
+
+	public void setSearchBoxes(RectF[] searchBoxes) {
+	}
+
+	public void setLinkHighlighting(boolean f) {
+	}
+
+	public void deleteSelectedAnnotation() {
+	}
+
+	public void deselectAnnotation() {
+	}
+
+	public void setChangeReporter(Runnable reporter) {
+	}
+
+	public void update() {
+	}
+
+	public void updateHq(boolean update) {
+	}
+
+	public void removeHq() {
+	}
+
+	public void releaseResources() {
+		if (mLoadLayout != null) {
+			mLoadLayout.cancel(true);
+			mLoadLayout = null;
+		}
+		mLayout = null;
+	}
+
+	public void releaseBitmaps() {
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		int x, y;
+		switch(MeasureSpec.getMode(widthMeasureSpec)) {
+		case MeasureSpec.UNSPECIFIED:
+			x = mParentSize.x;
+			break;
+		default:
+			x = MeasureSpec.getSize(widthMeasureSpec);
+		}
+		switch(MeasureSpec.getMode(heightMeasureSpec)) {
+		case MeasureSpec.UNSPECIFIED:
+			y = mLayout != null ? mLayout.getHeight() : mParentSize.y;
+			break;
+		default:
+			y = MeasureSpec.getSize(heightMeasureSpec);
+		}
+
+		setMeasuredDimension(x, y);
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		if (mLayout != null)
+			mLayout.draw(canvas);
+	}
+}
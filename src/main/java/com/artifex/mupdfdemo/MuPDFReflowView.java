@@ -4,26 +4,41 @@ import android.content.Context;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.RectF;
+import android.os.Build;
 import android.os.Handler;
-import android.util.Base64;
 import android.view.MotionEvent;
 import android.view.View;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
 public class MuPDFReflowView extends WebView implements MuPDFView {
+	// Pages are served to the WebView from the cache under this made up
+	// origin, as <origin><page>/index.html, with their images alongside
+	private static final String REFLOW_ORIGIN = "https://mupdf.reflow/";
+	private static final String PAGE_DOCUMENT = "index.html";
+
 	private final MuPDFCore mCore;
+	private final ReflowCache mCache;
 	private final Handler mHandler;
 	private final Point mParentSize;
 	private int mPage;
 	private float mScale;
 	private int mContentHeight;
-	AsyncTask<Void,Void,byte[]> mLoadHTML;
+	AsyncTask<Void,Void,ReflowHtml> mLoadHTML;
 
 	public MuPDFReflowView(Context c, MuPDFCore core, Point parentSize) {
+		this(c, core, parentSize, new ReflowCache(core));
+	}
+
+	public MuPDFReflowView(Context c, MuPDFCore core, Point parentSize, ReflowCache cache) {
 		super(c);
 		mHandler = new Handler();
 		mCore = core;
+		mCache = cache;
 		mParentSize = parentSize;
 		mScale = 1.0f;
 		mContentHeight = parentSize.y;
@@ -43,6 +58,12 @@ public class MuPDFReflowView extends WebView implements MuPDFView {
 			public void onPageFinished(WebView view, String url) {
 				setScale(mScale);
 			}
+
+			@Override
+			public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+				WebResourceResponse response = serveReflow(url);
+				return response != null ? response : super.shouldInterceptRequest(view, url);
+			}
 		});
 	}
 
@@ -56,21 +77,74 @@ public class MuPDFReflowView extends WebView implements MuPDFView {
 		mPage = page;
 		if (mLoadHTML != null) {
 			mLoadHTML.cancel(true);
+			mLoadHTML = null;
+		}
+
+		if (mCache.get(page) != null) {
+			showHtml();
+			return;
 		}
-		mLoadHTML = new AsyncTask<Void,Void,byte[]>() {
+
+		mLoadHTML = new AsyncTask<Void,Void,ReflowHtml>() {
 			@Override
-			protected byte[] doInBackground(Void... params) {
-				return mCore.html(mPage);
+			protected ReflowHtml doInBackground(Void... params) {
+				return mCache.load(mPage);
 			}
 			@Override
-			protected void onPostExecute(byte[] result) {
-				String b64 = Base64.encodeToString(result, Base64.DEFAULT);
-				loadData(b64, "text/html; charset=utf-8", "base64");
+			protected void onPostExecute(ReflowHtml result) {
+				mLoadHTML = null;
+				if (result != null)
+					showHtml();
 			}
 		};
 		mLoadHTML.execute();
 	}
 
+	private void showHtml() {
+		// The WebView fetches the page back through shouldInterceptRequest
+		loadUrl(REFLOW_ORIGIN + mPage + "/" + PAGE_DOCUMENT);
+		// Have the neighbouring pages ready for when the user turns to them
+		mCache.prefetchAround(mPage);
+	}
+
+	// Called on a WebView worker thread. Anything under the made up origin
+	// that cannot be served is answered as not found, never left to go out
+	// to the network.
+	private WebResourceResponse serveReflow(String url) {
+		if (!url.startsWith(REFLOW_ORIGIN))
+			return null;
+
+		String path[] = url.substring(REFLOW_ORIGIN.length()).split("/");
+		if (path.length != 2)
+			return notFound();
+
+		try {
+			int page = Integer.parseInt(path[0]);
+			if (page < 0 || page >= mCore.countPages())
+				return notFound();
+			ReflowHtml html = mCache.load(page);
+			if (html == null)
+				return notFound();
+
+			if (path[1].equals(PAGE_DOCUMENT))
+				return new WebResourceResponse("text/html", "utf-8", html.openHtml());
+
+			for (int i = 0; i < html.countImages(); i++)
+				if (path[1].equals(ReflowHtml.imageReference(i)))
+					return new WebResourceResponse(html.getImageMimeType(i), null, html.openImage(i));
+		} catch (NumberFormatException e) {
+		}
+
+		return notFound();
+	}
+
+	private static WebResourceResponse notFound() {
+		InputStream empty = new ByteArrayInputStream(new byte[0]);
+		if (Build.VERSION.SDK_INT >= 21)
+			return new WebResourceResponse("text/plain", "utf-8", 404, "Not Found", null, empty);
+		return new WebResourceResponse("text/plain", "utf-8", empty);
+	}
+
 	public int getPage() {
 		return mPage;
 	}
@@ -0,0 +1,295 @@
+package com.artifex.mupdfdemo;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+
+/*
+ * Draws what PageView shows above the rendered page: search hits, link
+ * highlights, the text selection, the selected item's box and ink being
+ * drawn. Everything is kept in page coordinates, ready built, and only
+ * rebuilt when it changes; drawing just scales the canvas, so a frame
+ * allocates nothing however often the view is invalidated.
+ *
+ * Ink is drawn into a layer bitmap covering the part of the view that is
+ * both on screen and being redrawn, one new segment at a time, so the cost
+ * of a frame while drawing does not grow with the amount already drawn.
+ * The layer is never bigger than the screen, however far the page is
+ * zoomed, and is only redrawn from the strokes when the view is scrolled
+ * or zoomed.
+ */
+class OverlayRenderer {
+	private static final int HIGHLIGHT_COLOR = 0x802572AC;
+	private static final int LINK_COLOR = 0x80AC7225;
+	private static final int BOX_COLOR = 0xFF4444FF;
+	private static final int INK_COLOR = 0xFFFF0000;
+	static final float INK_THICKNESS = 10.0f;
+
+	private final Paint mHighlightPaint = new Paint();
+	private final Paint mLinkPaint = new Paint();
+	private final Paint mBoxPaint = new Paint();
+	private final Paint mInkPaint = new Paint();
+	private final Paint mInkDotPaint = new Paint();
+
+	private float mSearchBoxes[] = new float[0];  // left, top, right, bottom per box
+	private int mNumSearchBoxes;
+
+	private RectIndex mLinks;
+	private int mVisibleLinks[];
+	private boolean mHighlightLinks;
+	private final Rect mClipBounds = new Rect();
+	private final RectF mClip = new RectF();
+
+	private float mSelection[] = new float[0];    // left, top, right, bottom per selected line
+	private int mNumSelection;
+
+	private final RectF mItemBox = new RectF();
+	private boolean mHasItemBox;
+
+	private ArrayList<InkStroke> mInk;
+	private final Path mSegment = new Path();
+	private Bitmap mInkLayer;
+	private final Canvas mInkCanvas = new Canvas();
+	private final Rect mInkLayerArea = new Rect();
+	private float mInkLayerScale;
+	// How much of mInk is already in the layer: all strokes before
+	// mLayerStroke, and the segments up to point mLayerPoint of that one
+	private int mLayerStroke;
+	private int mLayerPoint;
+
+	OverlayRenderer() {
+		mHighlightPaint.setColor(HIGHLIGHT_COLOR);
+		mLinkPaint.setColor(LINK_COLOR);
+		mBoxPaint.setStyle(Paint.Style.STROKE);
+		mBoxPaint.setColor(BOX_COLOR);
+
+		mInkPaint.setAntiAlias(true);
+		mInkPaint.setDither(true);
+		mInkPaint.setStrokeJoin(Paint.Join.ROUND);
+		mInkPaint.setStrokeCap(Paint.Cap.ROUND);
+		mInkPaint.setStyle(Paint.Style.STROKE);
+		mInkPaint.setStrokeWidth(INK_THICKNESS);
+		mInkPaint.setColor(INK_COLOR);
+		mInkDotPaint.set(mInkPaint);
+		mInkDotPaint.setStyle(Paint.Style.FILL);
+	}
+
+	void setSearchBoxes(RectF boxes[]) {
+		mNumSearchBoxes = boxes != null ? boxes.length : 0;
+		if (mSearchBoxes.length < mNumSearchBoxes * 4)
+			mSearchBoxes = new float[mNumSearchBoxes * 4];
+		for (int i = 0; i < mNumSearchBoxes; i++)
+			putRect(mSearchBoxes, i, boxes[i]);
+	}
+
+	void setLinks(RectIndex links) {
+		mLinks = links;
+		mVisibleLinks = links != null ? new int[links.size()] : null;
+	}
+
+	void setLinkHighlighting(boolean highlight) {
+		mHighlightLinks = highlight;
+	}
+
+	// Selection is rebuilt by the caller through these whenever it changes
+	void clearSelection() {
+		mNumSelection = 0;
+	}
+
+	void addSelectionLine(RectF rect) {
+		if (mSelection.length < (mNumSelection + 1) * 4) {
+			float grown[] = new float[Math.max(16, mSelection.length * 2)];
+			System.arraycopy(mSelection, 0, grown, 0, mNumSelection * 4);
+			mSelection = grown;
+		}
+		putRect(mSelection, mNumSelection++, rect);
+	}
+
+	void setItemBox(RectF rect) {
+		mHasItemBox = rect != null;
+		if (mHasItemBox)
+			mItemBox.set(rect);
+	}
+
+	// The strokes are appended to by the caller, who invalidates the view
+	void setInk(ArrayList<InkStroke> ink) {
+		mInk = ink;
+		mLayerStroke = 0;
+		mLayerPoint = 0;
+		mInkLayerScale = 0;
+	}
+
+	void releaseInkLayer() {
+		if (mInkLayer != null) {
+			mInkLayer.recycle();
+			mInkLayer = null;
+		}
+		mInkLayerScale = 0;
+	}
+
+	// The layer covers area, the on screen part of the view clipped to
+	// what is being redrawn; false if there is no memory for it
+	private boolean prepareInkLayer(float scale, Rect area) {
+		int w = area.width();
+		int h = area.height();
+		if (scale == mInkLayerScale && area.equals(mInkLayerArea))
+			return true;
+
+		// Reuse the layer bitmap unless it is too small
+		if (mInkLayer == null || mInkLayer.getWidth() < w || mInkLayer.getHeight() < h) {
+			int lw = Math.max(w, mInkLayer != null ? mInkLayer.getWidth() : 0);
+			int lh = Math.max(h, mInkLayer != null ? mInkLayer.getHeight() : 0);
+			releaseInkLayer();
+			try {
+				mInkLayer = Bitmap.createBitmap(lw, lh, Bitmap.Config.ARGB_8888);
+			} catch (OutOfMemoryError e) {
+				return false;
+			}
+			mInkCanvas.setBitmap(mInkLayer);
+		} else {
+			mInkLayer.eraseColor(Color.TRANSPARENT);
+		}
+		mInkCanvas.setMatrix(null);
+		mInkCanvas.translate(-area.left, -area.top);
+		mInkCanvas.scale(scale, scale);
+		mInkLayerArea.set(area);
+		mInkLayerScale = scale;
+		mLayerStroke = 0;
+		mLayerPoint = 0;
+		return true;
+	}
+
+	// Draw into the layer whatever has been added since last time. The end
+	// of the last stroke may yet change, so it is drawn by drawInkTail.
+	private void updateInkLayer() {
+		int numStrokes = mInk.size();
+		for (int s = mLayerStroke; s < numStrokes; s++) {
+			InkStroke stroke = mInk.get(s);
+			boolean last = s == numStrokes - 1;
+			int count = stroke.size();
+			if (count == 1) {
+				if (!last)
+					mInkCanvas.drawCircle(stroke.getX(0), stroke.getY(0), INK_THICKNESS / 2, mInkDotPaint);
+			} else {
+				for (int k = Math.max(1, mLayerPoint); k < count; k++)
+					drawSegment(mInkCanvas, stroke, k);
+				if (!last)
+					drawTail(mInkCanvas, stroke);
+			}
+
+			if (last) {
+				mLayerPoint = count;
+			} else {
+				mLayerStroke = s + 1;
+				mLayerPoint = 0;
+			}
+		}
+	}
+
+	// The curve from the midpoint before point k-1 (or the start) to the
+	// midpoint after it, bending through point k-1
+	private void drawSegment(Canvas canvas, InkStroke stroke, int k) {
+		float px = stroke.getX(k - 1);
+		float py = stroke.getY(k - 1);
+		mSegment.rewind();
+		if (k == 1)
+			mSegment.moveTo(px, py);
+		else
+			mSegment.moveTo((stroke.getX(k - 2) + px) / 2, (stroke.getY(k - 2) + py) / 2);
+		mSegment.quadTo(px, py, (stroke.getX(k) + px) / 2, (stroke.getY(k) + py) / 2);
+		canvas.drawPath(mSegment, mInkPaint);
+	}
+
+	private void drawTail(Canvas canvas, InkStroke stroke) {
+		int n = stroke.size();
+		float x = stroke.getX(n - 1);
+		float y = stroke.getY(n - 1);
+		canvas.drawLine((stroke.getX(n - 2) + x) / 2, (stroke.getY(n - 2) + y) / 2, x, y, mInkPaint);
+	}
+
+	private void drawInk(Canvas canvas, float scale, Rect visible) {
+		if (mInk == null || mInk.isEmpty())
+			return;
+		// Nothing of the page on screen, or nothing being redrawn
+		if (!canvas.getClipBounds(mClipBounds) || !mClipBounds.intersect(visible))
+			return;
+
+		boolean layered = prepareInkLayer(scale, mClipBounds);
+		if (layered) {
+			updateInkLayer();
+			canvas.drawBitmap(mInkLayer, mInkLayerArea.left, mInkLayerArea.top, null);
+		}
+
+		InkStroke stroke = mInk.get(mInk.size() - 1);
+		canvas.save();
+		canvas.clipRect(mClipBounds);
+		canvas.scale(scale, scale);
+		if (!layered) {
+			// No memory for the layer: draw everything directly
+			for (int s = 0; s < mInk.size(); s++) {
+				InkStroke other = mInk.get(s);
+				for (int k = 1; k < other.size(); k++)
+					drawSegment(canvas, other, k);
+				if (other != stroke && other.size() > 1)
+					drawTail(canvas, other);
+				else if (other != stroke)
+					canvas.drawCircle(other.getX(0), other.getY(0), INK_THICKNESS / 2, mInkDotPaint);
+			}
+		}
+		if (stroke.size() == 1)
+			canvas.drawCircle(stroke.getX(0), stroke.getY(0), INK_THICKNESS / 2, mInkDotPaint);
+		else
+			drawTail(canvas, stroke);
+		canvas.restore();
+	}
+
+	private static void putRect(float array[], int i, RectF rect) {
+		array[i * 4] = rect.left;
+		array[i * 4 + 1] = rect.top;
+		array[i * 4 + 2] = rect.right;
+		array[i * 4 + 3] = rect.bottom;
+	}
+
+	private static void drawRects(Canvas canvas, float array[], int count, Paint paint) {
+		for (int i = 0; i < count; i++)
+			canvas.drawRect(array[i * 4], array[i * 4 + 1], array[i * 4 + 2], array[i * 4 + 3], paint);
+	}
+
+	// scale maps page coordinates to view coordinates; visible is the part
+	// of the view on screen
+	void draw(Canvas canvas, float scale, boolean blank, Rect visible) {
+		canvas.save();
+		canvas.scale(scale, scale);
+
+		if (!blank)
+			drawRects(canvas, mSearchBoxes, mNumSearchBoxes, mHighlightPaint);
+
+		if (!blank && mLinks != null && mHighlightLinks) {
+			// Only the links within the visible part of the page
+			canvas.getClipBounds(mClipBounds);
+			mClip.set(mClipBounds);
+			mClip.inset(-1, -1);
+			int numLinks = mLinks.query(mClip, mVisibleLinks);
+			for (int i = 0; i < numLinks; i++)
+				canvas.drawRect(mLinks.get(mVisibleLinks[i]), mLinkPaint);
+		}
+
+		drawRects(canvas, mSelection, mNumSelection, mHighlightPaint);
+
+		if (mHasItemBox) {
+			// Keep the box one pixel wide whatever the scale
+			mBoxPaint.setStrokeWidth(0);
+			canvas.drawRect(mItemBox, mBoxPaint);
+		}
+
+		canvas.restore();
+
+		drawInk(canvas, scale, visible);
+	}
+}
@@ -0,0 +1,19 @@
+package com.artifex.mupdfdemo;
+
+import android.graphics.RectF;
+
+/*
+ * Everything about a page that the views need besides its rendering,
+ * fetched together by MuPDFCore.getPageMetadata.
+ */
+public class PageMetadata {
+	public final LinkInfo links[];
+	public final RectF widgetAreas[];
+	public final Annotation annotations[];
+
+	public PageMetadata(LinkInfo _links[], RectF _widgetAreas[], Annotation _annotations[]) {
+		links = _links;
+		widgetAreas = _widgetAreas;
+		annotations = _annotations;
+	}
+}
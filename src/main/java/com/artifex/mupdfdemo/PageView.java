@@ -7,7 +7,6 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.Rect;
@@ -22,9 +21,9 @@ import android.widget.ProgressBar;
 
 import com.artifex.utils.DigitalizedEventCallback;
 import com.artifex.utils.PdfBitmap;
+import com.artifex.utils.PdfBitmapStore;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 
 // Make our ImageViews opaque to optimize redraw
 class OpaqueImageView extends ImageView {
@@ -42,34 +41,33 @@ class OpaqueImageView extends ImageView {
 interface TextProcessor {
     void onStartLine();
 
-    void onWord(TextWord word);
+    void onWord(TextPage text, int word);
 
     void onEndLine();
 }
 
 class TextSelector {
-    final private TextWord[][] mText;
-    final private RectF mSelectBox;
+    private TextPage mText;
+    private RectF mSelectBox;
+    private int mLines[];
 
-    public TextSelector(TextWord[][] text, RectF selectBox) {
+    public void set(TextPage text, RectF selectBox) {
         mText = text;
         mSelectBox = selectBox;
+        if (text != null && (mLines == null || mLines.length < text.countLines()))
+            mLines = new int[text.countLines()];
     }
 
     public void select(TextProcessor tp) {
         if (mText == null || mSelectBox == null)
             return;
 
-        ArrayList<TextWord[]> lines = new ArrayList<TextWord[]>();
-        for (TextWord[] line : mText)
-            if (line[0].bottom > mSelectBox.top && line[0].top < mSelectBox.bottom)
-                lines.add(line);
-
-        Iterator<TextWord[]> it = lines.iterator();
-        while (it.hasNext()) {
-            TextWord[] line = it.next();
-            boolean firstLine = line[0].top < mSelectBox.top;
-            boolean lastLine = line[0].bottom > mSelectBox.bottom;
+        // Only the lines overlapping the selection band are visited
+        int numLines = mText.findLines(mSelectBox.top, mSelectBox.bottom, mLines);
+        for (int i = 0; i < numLines; i++) {
+            int line = mLines[i];
+            boolean firstLine = mText.getLineTop(line) < mSelectBox.top;
+            boolean lastLine = mText.getLineBottom(line) > mSelectBox.bottom;
             float start = Float.NEGATIVE_INFINITY;
             float end = Float.POSITIVE_INFINITY;
 
@@ -84,9 +82,17 @@ class TextSelector {
 
             tp.onStartLine();
 
-            for (TextWord word : line)
-                if (word.right > start && word.left < end)
-                    tp.onWord(word);
+            boolean ordered = mText.isLineOrdered(line);
+            int wordEnd = mText.getLineWordEnd(line);
+            for (int word = mText.getLineWordStartAfter(line, start); word < wordEnd; word++) {
+                if (mText.getWordLeft(word) >= end) {
+                    if (ordered)
+                        break;
+                    continue;
+                }
+                if (mText.getWordRight(word) > start)
+                    tp.onWord(mText, word);
+            }
 
             tp.onEndLine();
         }
@@ -94,11 +100,6 @@ class TextSelector {
 }
 
 public abstract class PageView extends ViewGroup {
-    private static final int HIGHLIGHT_COLOR = 0x802572AC;
-    private static final int LINK_COLOR = 0x80AC7225;
-    private static final int BOX_COLOR = 0xFF4444FF;
-    private static final int INK_COLOR = 0xFFFF0000;
-    private static final float INK_THICKNESS = 10.0f;
     private static final int BACKGROUND_COLOR = 0xFFFFFFFF;
     private static final int PROGRESS_DIALOG_DELAY = 200;
     private static final String TAG = "PageView";
@@ -115,24 +116,34 @@ public abstract class PageView extends ViewGroup {
     private ImageView mEntire; // Image rendered at minimum zoom
     private Bitmap mEntireBm; // Bitmap used to draw the entire page at minimum zoom.
     private Matrix mEntireMat;
-    private AsyncTask<Void, Void, TextWord[][]> mGetText;
-    private AsyncTask<Void, Void, LinkInfo[]> mGetLinkInfo;
+    private AsyncTask<Void, Void, TextPage> mGetText;
+    private AsyncTask<Void, Void, PageMetadata> mGetMetadata;
+    private AsyncTask<Void, Void, Boolean> mLoadStamps;
     private CancellableAsyncTask<Void, Void> mDrawEntire;
+    private boolean mEntireRendered; // mEntireBm holds a finished rendering of the page
 
     private Point mPatchViewSize; // View size on the basis of which the patch was created. After zoom.
     private Rect mPatchArea; // Area of the screen zoomed.
     private ImageView mPatch; // Image rendered at zoom resolution.
     private Bitmap mPatchBm; // Bitmap used to draw the zoomed image.
     private CancellableAsyncTask<Void, Void> mDrawPatch;
-    private RectF mSearchBoxes[];
+    private boolean mPatchPending;
+    private final ArrayList<RectF> mDirtyAreas = new ArrayList<RectF>(); // Page areas awaiting re-render
+    private CancellableAsyncTask<Void, Void> mDrawDirty;
     protected LinkInfo mLinks[];
+    protected RectIndex mLinkIndex;
     private RectF mSelectBox;
-    private TextWord mText[][];
-    private RectF mItemSelectBox;
-    protected ArrayList<ArrayList<PointF>> mDrawing;
+    private TextPage mText;
+    private final TextSelector mTextSelector = new TextSelector();
+    private final SelectionBuilder mSelectionBuilder = new SelectionBuilder();
+    protected ArrayList<InkStroke> mDrawing;
+    private final OverlayRenderer mOverlay = new OverlayRenderer();
+    private View mStampView; // Stamps, drawn over the page rather than into its bitmaps
+    private final Point mStampViewSize = new Point();
+    private final Rect mStampClip = new Rect();
     private View mSearchView;
+    private final Rect mOverlayArea = new Rect(); // Part of mSearchView on screen
     private boolean mIsBlank;
-    private boolean mHighlightLinks;
 
     private ProgressBar mBusyIndicator;
     private final Handler mHandler = new Handler();
@@ -147,6 +158,10 @@ public abstract class PageView extends ViewGroup {
 
     private PointF pdfSize;
     private PdfBitmap picturePdfBitmap; // *BACKWARD COMPATIBILITY*
+    private final ArrayList<PdfBitmap> mStamps = new ArrayList<PdfBitmap>(); // Reused for queries on the bitmap store
+    private final RectF mStampArea = new RectF();
+    private final Rect mStampSrc = new Rect();
+    private final Rect mStampDst = new Rect();
 
     private MuPDFCore core;
 
@@ -164,11 +179,11 @@ public abstract class PageView extends ViewGroup {
 
     protected abstract CancellableTaskDefinition<Void, Void> getUpdatePageTask(Bitmap bm, int sizeX, int sizeY, int patchX, int patchY, int patchWidth, int patchHeight);
 
-    protected abstract LinkInfo[] getLinkInfo();
+    protected abstract PageMetadata getPageMetadata();
 
-    protected abstract TextWord[][] getText();
+    protected abstract TextPage getText();
 
-    protected abstract void addMarkup(PointF[] quadPoints, Annotation.Type type);
+    protected abstract AnnotationDiff addMarkup(int page, PointF[] quadPoints, Annotation.Type type);
 
     private void reinit() {
         // Cancel pending render task
@@ -176,15 +191,17 @@ public abstract class PageView extends ViewGroup {
             mDrawEntire.cancelAndWait();
             mDrawEntire = null;
         }
+        mEntireRendered = false;
+        cancelDirty();
 
         if (mDrawPatch != null) {
             mDrawPatch.cancelAndWait();
             mDrawPatch = null;
         }
 
-        if (mGetLinkInfo != null) {
-            mGetLinkInfo.cancel(true);
-            mGetLinkInfo = null;
+        if (mGetMetadata != null) {
+            mGetMetadata.cancel(true);
+            mGetMetadata = null;
         }
 
         if (mGetText != null) {
@@ -192,6 +209,11 @@ public abstract class PageView extends ViewGroup {
             mGetText = null;
         }
 
+        if (mLoadStamps != null) {
+            mLoadStamps.cancel(true);
+            mLoadStamps = null;
+        }
+
         mIsBlank = true;
         mPageNumber = 0;
 
@@ -211,11 +233,20 @@ public abstract class PageView extends ViewGroup {
         mPatchViewSize = null;
         mPatchArea = null;
 
-        mSearchBoxes = null;
+        if (mStampView != null)
+            mStampView.invalidate();
+
         mLinks = null;
+        mLinkIndex = null;
         mSelectBox = null;
         mText = null;
-        mItemSelectBox = null;
+        // Ink not yet saved belongs to the page it was drawn on
+        mDrawing = null;
+        mOverlay.setInk(null);
+        mOverlay.setSearchBoxes(null);
+        mOverlay.setLinks(null);
+        mOverlay.clearSelection();
+        mOverlay.setItemBox(null);
     }
 
     public void releaseResources() {
@@ -229,7 +260,24 @@ public abstract class PageView extends ViewGroup {
         }
     }
 
+    /**
+     * Get ready to be set to another page. Unlike releaseResources the page
+     * bitmap is kept, since the next page has the same size of bitmap; only
+     * the zoomed patch, which depends on the page and zoom, is let go.
+     */
+    public void recycle() {
+        releaseHq();
+
+        reinit();
+
+        if (mBusyIndicator != null) {
+            removeView(mBusyIndicator);
+            mBusyIndicator = null;
+        }
+    }
+
     public void releaseBitmaps() {
+        cancelDirty();
         if (mEntire != null) {
             mEntire.setImageBitmap(null);
             mEntire.invalidate();
@@ -246,6 +294,7 @@ public abstract class PageView extends ViewGroup {
         Log.i(TAG, "Recycle mPathBm on releaseBitmaps: " + mPatchBm);
         recycleBitmap(mPatchBm);
         mPatchBm = null;
+        mOverlay.releaseInkLayer();
     }
 
     public void blank(int page) {
@@ -265,6 +314,22 @@ public abstract class PageView extends ViewGroup {
     public void setPage(int page, PointF size) {
         pdfSize = correctBugMuPdf(size);
 
+        // Cancel pending render task
+        if (mDrawEntire != null) {
+            mDrawEntire.cancelAndWait();
+            mDrawEntire = null;
+        }
+
+        // A bitmap kept from the last page is reused unless the parent has
+        // changed size since
+        if (mEntireBm != null && (mEntireBm.isRecycled()
+                || mEntireBm.getWidth() != mParentSize.x || mEntireBm.getHeight() != mParentSize.y)) {
+            cancelDirty();
+            if (mEntire != null)
+                mEntire.setImageBitmap(null);
+            recycleBitmap(mEntireBm);
+            mEntireBm = null;
+        }
         if (mEntireBm == null) {
             try {
                 mEntireBm = Bitmap.createBitmap(mParentSize.x, mParentSize.y, Config.ARGB_8888);
@@ -273,12 +338,6 @@ public abstract class PageView extends ViewGroup {
             }
         }
 
-        // Cancel pending render task
-        if (mDrawEntire != null) {
-            mDrawEntire.cancelAndWait();
-            mDrawEntire = null;
-        }
-
         mIsBlank = false;
         // Highlights may be missing because mIsBlank was true on last draw
         if (mSearchView != null)
@@ -300,23 +359,48 @@ public abstract class PageView extends ViewGroup {
         mEntire.setImageBitmap(null);
         mEntire.invalidate();
 
-        // Get the link info in the background
-        mGetLinkInfo = new AsyncTask<Void, Void, LinkInfo[]>() {
-            protected LinkInfo[] doInBackground(Void... v) {
-                return getLinkInfo();
+        // Get the links, widgets and annotations in the background, in one go
+        if (mGetMetadata != null)
+            mGetMetadata.cancel(true);
+        mGetMetadata = new AsyncTask<Void, Void, PageMetadata>() {
+            protected PageMetadata doInBackground(Void... v) {
+                return getPageMetadata();
             }
 
-            protected void onPostExecute(LinkInfo[] v) {
-                mLinks = v;
+            protected void onPostExecute(PageMetadata v) {
+                onPageMetadata(v);
                 if (mSearchView != null)
                     mSearchView.invalidate();
             }
         };
 
-        mGetLinkInfo.execute();
+        mGetMetadata.execute();
+
+        loadStampImages();
 
         updateEntireCanvas(false);
 
+        if (mStampView == null) {
+            mStampView = new View(mContext) {
+                @Override
+                protected void onDraw(final Canvas canvas) {
+                    super.onDraw(canvas);
+                    if (mIsBlank || !canvas.getClipBounds(mStampClip))
+                        return;
+                    // Only what is on screen, at screen resolution
+                    mStampViewSize.set(getWidth(), getHeight());
+                    canvas.save();
+                    canvas.translate(mStampClip.left, mStampClip.top);
+                    drawBitmaps(canvas, mStampViewSize, mStampClip);
+                    canvas.restore();
+                }
+            };
+
+            addView(mStampView);
+        } else {
+            mStampView.invalidate();
+        }
+
         if (mSearchView == null) {
             mSearchView = new View(mContext) {
                 @Override
@@ -325,90 +409,13 @@ public abstract class PageView extends ViewGroup {
                     // Work out current total scale factor
                     // from source to view
                     final float scale = mSourceScale * (float) getWidth() / (float) mSize.x;
-                    final Paint paint = new Paint();
-
-                    if (!mIsBlank && mSearchBoxes != null) {
-                        paint.setColor(HIGHLIGHT_COLOR);
-                        for (RectF rect : mSearchBoxes)
-                            canvas.drawRect(rect.left * scale, rect.top * scale,
-                                    rect.right * scale, rect.bottom * scale,
-                                    paint);
-                    }
-
-                    if (!mIsBlank && mLinks != null && mHighlightLinks) {
-                        paint.setColor(LINK_COLOR);
-                        for (LinkInfo link : mLinks)
-                            canvas.drawRect(link.rect.left * scale, link.rect.top * scale,
-                                    link.rect.right * scale, link.rect.bottom * scale,
-                                    paint);
-                    }
-
-                    if (mSelectBox != null && mText != null) {
-                        paint.setColor(HIGHLIGHT_COLOR);
-                        processSelectedText(new TextProcessor() {
-                            RectF rect;
-
-                            public void onStartLine() {
-                                rect = new RectF();
-                            }
-
-                            public void onWord(TextWord word) {
-                                rect.union(word);
-                            }
-
-                            public void onEndLine() {
-                                if (!rect.isEmpty())
-                                    canvas.drawRect(rect.left * scale, rect.top * scale, rect.right * scale, rect.bottom * scale, paint);
-                            }
-                        });
-                    }
-
-                    if (mItemSelectBox != null) {
-                        paint.setStyle(Paint.Style.STROKE);
-                        paint.setColor(BOX_COLOR);
-                        canvas.drawRect(mItemSelectBox.left * scale, mItemSelectBox.top * scale, mItemSelectBox.right * scale, mItemSelectBox.bottom * scale, paint);
-                    }
-
-                    if (mDrawing != null) {
-                        Path path = new Path();
-                        PointF p;
-
-                        paint.setAntiAlias(true);
-                        paint.setDither(true);
-                        paint.setStrokeJoin(Paint.Join.ROUND);
-                        paint.setStrokeCap(Paint.Cap.ROUND);
-
-                        paint.setStyle(Paint.Style.FILL);
-                        paint.setStrokeWidth(INK_THICKNESS * scale);
-                        paint.setColor(INK_COLOR);
-
-                        Iterator<ArrayList<PointF>> it = mDrawing.iterator();
-                        while (it.hasNext()) {
-                            ArrayList<PointF> arc = it.next();
-                            if (arc.size() >= 2) {
-                                Iterator<PointF> iit = arc.iterator();
-                                p = iit.next();
-                                float mX = p.x * scale;
-                                float mY = p.y * scale;
-                                path.moveTo(mX, mY);
-                                while (iit.hasNext()) {
-                                    p = iit.next();
-                                    float x = p.x * scale;
-                                    float y = p.y * scale;
-                                    path.quadTo(mX, mY, (x + mX) / 2, (y + mY) / 2);
-                                    mX = x;
-                                    mY = y;
-                                }
-                                path.lineTo(mX, mY);
-                            } else {
-                                p = arc.get(0);
-                                canvas.drawCircle(p.x * scale, p.y * scale, INK_THICKNESS * scale / 2, paint);
-                            }
-                        }
-
-                        paint.setStyle(Paint.Style.STROKE);
-                        canvas.drawPath(path, paint);
-                    }
+                    // Zoomed in, this view is several screens big: only
+                    // the part on screen, as for the hq patch, is drawn
+                    mOverlayArea.set(0, 0, mParentSize.x, mParentSize.y);
+                    mOverlayArea.offset(-PageView.this.getLeft(), -PageView.this.getTop());
+                    if (!mOverlayArea.intersect(0, 0, getWidth(), getHeight()))
+                        mOverlayArea.setEmpty();
+                    mOverlay.draw(canvas, scale, mIsBlank, mOverlayArea);
                 }
             };
 
@@ -417,8 +424,54 @@ public abstract class PageView extends ViewGroup {
         requestLayout();
     }
 
+    // Read back the images of this page's stamps that were left on disk
+    // when the stamps were parcelled, and show them once read
+    private void loadStampImages() {
+        if (mLoadStamps != null) {
+            mLoadStamps.cancel(true);
+            mLoadStamps = null;
+        }
+        final ArrayList<PdfBitmap> pending = new ArrayList<PdfBitmap>();
+        for (PdfBitmap pdfBitmap : mAdapter.getPdfBitmapList().getPage(mPageNumber))
+            if (!pdfBitmap.isImageLoaded())
+                pending.add(pdfBitmap);
+        if (pending.isEmpty())
+            return;
+
+        mLoadStamps = new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                boolean loaded = false;
+                for (PdfBitmap pdfBitmap : pending) {
+                    if (isCancelled())
+                        break;
+                    if (pdfBitmap.loadImage())
+                        loaded = true;
+                    else
+                        Log.w(TAG, "Stamp image missing from disk: " + pdfBitmap);
+                }
+                return loaded;
+            }
+
+            @Override
+            protected void onPostExecute(Boolean loaded) {
+                mLoadStamps = null;
+                if (loaded)
+                    invalidateStamps();
+            }
+        };
+        mLoadStamps.execute();
+    }
+
+    protected void onPageMetadata(PageMetadata metadata) {
+        mLinks = metadata.links;
+        mLinkIndex = RectIndex.forLinks(metadata.links);
+        mOverlay.setLinks(mLinkIndex);
+    }
+
     public void updateEntireCanvas(final boolean updateZoomed) {
         // Render the page in the background
+        mEntireRendered = false;
         mDrawEntire = new CancellableAsyncTask<Void, Void>(getDrawPageTask(mEntireBm, mSize.x, mSize.y, 0, 0, mSize.x, mSize.y)) {
 
             @Override
@@ -453,17 +506,7 @@ public abstract class PageView extends ViewGroup {
                 removeView(mBusyIndicator);
                 mBusyIndicator = null;
                 mEntire.setImageBitmap(mEntireBm);
-
-                // Draws the signatures on EntireCanvas after changing pages (post loading).
-                if (mEntireBm != null && !mEntireBm.isRecycled()) {
-                    Canvas entireCanvas = new Canvas(mEntireBm);
-                    drawBitmaps(entireCanvas, null, null);
-                }
-
-                if (updateZoomed && (mPatchBm != null) && !mPatchBm.isRecycled()) {
-                    Canvas zoomedCanvas = new Canvas(mPatchBm);
-                    drawBitmaps(zoomedCanvas, mPatchViewSize, mPatchArea);
-                }
+                mEntireRendered = true;
                 flagHQ = false;
                 mEntire.invalidate();
                 setBackgroundColor(Color.TRANSPARENT);
@@ -476,19 +519,20 @@ public abstract class PageView extends ViewGroup {
     }
 
     public void setSearchBoxes(RectF searchBoxes[]) {
-        mSearchBoxes = searchBoxes;
+        mOverlay.setSearchBoxes(searchBoxes);
         if (mSearchView != null)
             mSearchView.invalidate();
     }
 
     public void setLinkHighlighting(boolean f) {
-        mHighlightLinks = f;
+        mOverlay.setLinkHighlighting(f);
         if (mSearchView != null)
             mSearchView.invalidate();
     }
 
     public void deselectText() {
         mSelectBox = null;
+        mOverlay.clearSelection();
         mSearchView.invalidate();
     }
 
@@ -504,19 +548,21 @@ public abstract class PageView extends ViewGroup {
         else
             mSelectBox = new RectF(docRelX1, docRelY1, docRelX0, docRelY0);
 
+        updateSelection();
         if (mSearchView != null)
             mSearchView.invalidate();
 
         if (mGetText == null) {
-            mGetText = new AsyncTask<Void, Void, TextWord[][]>() {
+            mGetText = new AsyncTask<Void, Void, TextPage>() {
                 @Override
-                protected TextWord[][] doInBackground(Void... params) {
+                protected TextPage doInBackground(Void... params) {
                     return getText();
                 }
 
                 @Override
-                protected void onPostExecute(TextWord[][] result) {
+                protected void onPostExecute(TextPage result) {
                     mText = result;
+                    updateSelection();
                     if (mSearchView != null)
                         mSearchView.invalidate();
                 }
@@ -530,12 +576,12 @@ public abstract class PageView extends ViewGroup {
         float scale = mSourceScale * (float) getWidth() / (float) mSize.x;
         float docRelX = (x - getLeft()) / scale;
         float docRelY = (y - getTop()) / scale;
-        if (mDrawing == null)
-            mDrawing = new ArrayList<ArrayList<PointF>>();
+        if (mDrawing == null) {
+            mDrawing = new ArrayList<InkStroke>();
+            mOverlay.setInk(mDrawing);
+        }
 
-        ArrayList<PointF> arc = new ArrayList<PointF>();
-        arc.add(new PointF(docRelX, docRelY));
-        mDrawing.add(arc);
+        mDrawing.add(new InkStroke(docRelX, docRelY));
         if (mSearchView != null)
             mSearchView.invalidate();
     }
@@ -546,8 +592,8 @@ public abstract class PageView extends ViewGroup {
         float docRelY = (y - getTop()) / scale;
 
         if (mDrawing != null && mDrawing.size() > 0) {
-            ArrayList<PointF> arc = mDrawing.get(mDrawing.size() - 1);
-            arc.add(new PointF(docRelX, docRelY));
+            // The overlay picks the new point up on its next frame
+            mDrawing.get(mDrawing.size() - 1).add(docRelX, docRelY);
             if (mSearchView != null)
                 mSearchView.invalidate();
         }
@@ -555,6 +601,8 @@ public abstract class PageView extends ViewGroup {
 
     public void cancelDraw() {
         mDrawing = null;
+        mOverlay.setInk(null);
+        mOverlay.releaseInkLayer();
         if (mSearchView != null)
             mSearchView.invalidate();
     }
@@ -565,20 +613,43 @@ public abstract class PageView extends ViewGroup {
 
         PointF[][] path = new PointF[mDrawing.size()][];
 
-        for (int i = 0; i < mDrawing.size(); i++) {
-            ArrayList<PointF> arc = mDrawing.get(i);
-            path[i] = arc.toArray(new PointF[arc.size()]);
-        }
+        for (int i = 0; i < mDrawing.size(); i++)
+            path[i] = mDrawing.get(i).toPoints();
 
         return path;
     }
 
     protected void processSelectedText(TextProcessor tp) {
-        (new TextSelector(mText, mSelectBox)).select(tp);
+        mTextSelector.set(mText, mSelectBox);
+        mTextSelector.select(tp);
+    }
+
+    // Rebuild the selection highlight, only when the selection or text changes
+    private void updateSelection() {
+        mOverlay.clearSelection();
+        if (mSelectBox != null && mText != null)
+            processSelectedText(mSelectionBuilder);
+    }
+
+    private class SelectionBuilder implements TextProcessor {
+        private final RectF mRect = new RectF();
+
+        public void onStartLine() {
+            mRect.setEmpty();
+        }
+
+        public void onWord(TextPage text, int word) {
+            text.unionWordBounds(word, mRect);
+        }
+
+        public void onEndLine() {
+            if (!mRect.isEmpty())
+                mOverlay.addSelectionLine(mRect);
+        }
     }
 
     public void setItemSelectBox(RectF rect) {
-        mItemSelectBox = rect;
+        mOverlay.setItemBox(rect);
         if (mSearchView != null)
             mSearchView.invalidate();
     }
@@ -623,6 +694,10 @@ public abstract class PageView extends ViewGroup {
             mEntire.layout(0, 0, w, h);
         }
 
+        if (mStampView != null) {
+            mStampView.layout(0, 0, w, h);
+        }
+
         if (mSearchView != null) {
             mSearchView.layout(0, 0, w, h);
         }
@@ -695,6 +770,9 @@ public abstract class PageView extends ViewGroup {
                     mPatch = new OpaqueImageView(mContext);
                     mPatch.setScaleType(ImageView.ScaleType.MATRIX);
                     addView(mPatch);
+                    if (mStampView != null) {
+                        mStampView.bringToFront();
+                    }
                     if (mSearchView != null) {
                         mSearchView.bringToFront();
                     }
@@ -729,15 +807,15 @@ public abstract class PageView extends ViewGroup {
                     public void cancelAndWait() {
                         super.cancelAndWait();
                         flagHQ = false;
+                        mPatchPending = false;
                     }
 
                     public void onPostExecute(Void result) {
+                        mPatchPending = false;
                         mPatchViewSize = patchViewSize;
                         mPatchArea = patchArea;
 
                         if (mPatchBm != null && !mPatchBm.isRecycled()) {
-                            Canvas zoomedCanvas = new Canvas(mPatchBm);
-                            drawBitmaps(zoomedCanvas, mPatchViewSize, mPatchArea);
                             mPatch.setImageBitmap(mPatchBm);
                             mPatch.invalidate();
                         }
@@ -754,6 +832,7 @@ public abstract class PageView extends ViewGroup {
                     }
                 };
 
+                mPatchPending = true;
                 mDrawPatch.execute();
             }
         }
@@ -765,12 +844,14 @@ public abstract class PageView extends ViewGroup {
             mDrawEntire.cancelAndWait();
             mDrawEntire = null;
         }
+        cancelDirty();
 
         if (mDrawPatch != null) {
             mDrawPatch.cancelAndWait();
             mDrawPatch = null;
         }
 
+        mEntireRendered = false;
         mDrawEntire = new CancellableAsyncTask<Void, Void>(getUpdatePageTask(mEntireBm, mSize.x, mSize.y, 0, 0, mSize.x, mSize.y)) {
 
             @Override
@@ -781,11 +862,10 @@ public abstract class PageView extends ViewGroup {
 
             public void onPostExecute(Void result) {
                 if (mEntireBm != null && !mEntireBm.isRecycled()) {
-                    Canvas entireCanvas = new Canvas(mEntireBm);
-                    drawBitmaps(entireCanvas, null, null);
                     mEntire.setImageBitmap(mEntireBm);
                     mEntire.invalidate();
                     flagHQ=false;
+                    mEntireRendered = true;
                 }
             }
         };
@@ -795,6 +875,161 @@ public abstract class PageView extends ViewGroup {
         updateHq(true);
     }
 
+    /*
+     * Re-render only the given areas of the page, in page coordinates,
+     * into the existing page and zoomed bitmaps, for edits that are known
+     * to have changed nothing else. Falls back to a full update while the
+     * page itself is still being rendered.
+     */
+    public void update(RectF areas[]) {
+        if (areas == null || !mEntireRendered || mEntireBm == null || mEntireBm.isRecycled()) {
+            update();
+            return;
+        }
+
+        for (RectF area : areas)
+            if (area != null && !area.isEmpty())
+                mDirtyAreas.add(new RectF(area));
+
+        if (mPatchPending) {
+            // The zoomed patch under way may predate the edit
+            mDrawPatch.cancelAndWait();
+            mDrawPatch = null;
+            updateHq(true);
+        }
+
+        renderDirty();
+    }
+
+    public void update(RectF area) {
+        update(area != null ? new RectF[] {area} : null);
+    }
+
+    private void cancelDirty() {
+        if (mDrawDirty != null) {
+            mDrawDirty.cancelAndWait();
+            mDrawDirty = null;
+        }
+        mDirtyAreas.clear();
+    }
+
+    // Bitmap pixels of area, at pixelsPerUnit, with a pixel to spare for antialiasing
+    private static Rect pixelArea(RectF area, float pixelsPerUnit) {
+        Rect r = new Rect();
+        new RectF(area.left * pixelsPerUnit, area.top * pixelsPerUnit,
+                area.right * pixelsPerUnit, area.bottom * pixelsPerUnit).roundOut(r);
+        r.inset(-1, -1);
+        return r;
+    }
+
+    private void renderDirty() {
+        // A render cut short leaves its areas in mDirtyAreas for this one
+        if (mDrawDirty != null) {
+            mDrawDirty.cancelAndWait();
+            mDrawDirty = null;
+        }
+        if (mDirtyAreas.isEmpty())
+            return;
+
+        final Bitmap entireBm = mEntireBm;
+        final Bitmap patchBm = mPatchBm;
+        final Rect patchArea = mPatchArea;
+        final Point patchViewSize = mPatchViewSize;
+        boolean withPatch = patchBm != null && !patchBm.isRecycled() && patchArea != null && patchViewSize != null;
+
+        final ArrayList<Rect> entireRects = new ArrayList<Rect>();
+        final ArrayList<Rect> patchRects = new ArrayList<Rect>();
+        final ArrayList<Bitmap> pieces = new ArrayList<Bitmap>();
+        final ArrayList<CancellableTaskDefinition<Void, Void>> tasks = new ArrayList<CancellableTaskDefinition<Void, Void>>();
+        Rect entireBounds = new Rect(0, 0, mSize.x, mSize.y);
+        try {
+            for (RectF area : mDirtyAreas) {
+                Rect r = pixelArea(area, mSourceScale);
+                if (r.intersect(entireBounds)) {
+                    pieces.add(Bitmap.createBitmap(r.width(), r.height(), Config.ARGB_8888));
+                    entireRects.add(r);
+                }
+            }
+            if (withPatch) {
+                float patchScale = mSourceScale * (float) patchViewSize.x / (float) mSize.x;
+                for (RectF area : mDirtyAreas) {
+                    Rect r = pixelArea(area, patchScale);
+                    if (r.intersect(patchArea)) {
+                        pieces.add(Bitmap.createBitmap(r.width(), r.height(), Config.ARGB_8888));
+                        patchRects.add(r);
+                    }
+                }
+            }
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, e.getMessage(), e);
+            for (Bitmap piece : pieces)
+                piece.recycle();
+            update();
+            return;
+        }
+
+        int p = 0;
+        for (Rect r : entireRects)
+            tasks.add(getDrawPageTask(pieces.get(p++), mSize.x, mSize.y, r.left, r.top, r.width(), r.height()));
+        for (Rect r : patchRects)
+            tasks.add(getDrawPageTask(pieces.get(p++), patchViewSize.x, patchViewSize.y, r.left, r.top, r.width(), r.height()));
+
+        mDrawDirty = new CancellableAsyncTask<Void, Void>(new CancellableTaskDefinition<Void, Void>() {
+            private volatile boolean mCancelled;
+
+            public Void doInBackground(Void... params) {
+                for (CancellableTaskDefinition<Void, Void> task : tasks) {
+                    if (mCancelled)
+                        break;
+                    task.doInBackground();
+                }
+                return null;
+            }
+
+            public void doCancel() {
+                mCancelled = true;
+                for (CancellableTaskDefinition<Void, Void> task : tasks)
+                    task.doCancel();
+            }
+
+            public void doCleanup() {
+                for (CancellableTaskDefinition<Void, Void> task : tasks)
+                    task.doCleanup();
+                tasks.clear();
+                for (Bitmap piece : pieces)
+                    piece.recycle();
+                pieces.clear();
+            }
+        }) {
+            @Override
+            public void onPostExecute(Void result) {
+                mDrawDirty = null;
+                mDirtyAreas.clear();
+
+                int p = 0;
+                if (entireBm == mEntireBm && !entireBm.isRecycled()) {
+                    Canvas entireCanvas = new Canvas(entireBm);
+                    for (Rect r : entireRects)
+                        entireCanvas.drawBitmap(pieces.get(p++), r.left, r.top, null);
+                    mEntire.invalidate();
+                } else {
+                    p += entireRects.size();
+                }
+
+                // Unless the zoomed patch was replaced meanwhile
+                if (!patchRects.isEmpty() && patchBm == mPatchBm && !patchBm.isRecycled() && patchArea.equals(mPatchArea)) {
+                    Canvas zoomedCanvas = new Canvas(patchBm);
+                    zoomedCanvas.translate(-patchArea.left, -patchArea.top);
+                    for (Rect r : patchRects)
+                        zoomedCanvas.drawBitmap(pieces.get(p++), r.left, r.top, null);
+                    mPatch.invalidate();
+                }
+            }
+        };
+
+        mDrawDirty.execute();
+    }
+
     public void removeHq() {
         // Stop the drawing of the patch if still going
         if (mDrawPatch != null) {
@@ -812,6 +1047,32 @@ public abstract class PageView extends ViewGroup {
         flagHQ = false;
     }
 
+    /**
+     * Let go of the zoomed patch; it is rendered again by the next updateHq.
+     * Returns the bytes freed.
+     */
+    public long releaseHq() {
+        removeHq();
+        long freed = 0;
+        if (mPatchBm != null) {
+            if (!mPatchBm.isRecycled())
+                freed = mPatchBm.getByteCount();
+            recycleBitmap(mPatchBm);
+            mPatchBm = null;
+        }
+        return freed;
+    }
+
+    // Bytes held by the rendered page and zoomed patch
+    public long getBitmapBytes() {
+        long bytes = 0;
+        if (mEntireBm != null && !mEntireBm.isRecycled())
+            bytes += mEntireBm.getByteCount();
+        if (mPatchBm != null && !mPatchBm.isRecycled())
+            bytes += mPatchBm.getByteCount();
+        return bytes;
+    }
+
     public int getPage() {
         return mPageNumber;
     }
@@ -821,22 +1082,16 @@ public abstract class PageView extends ViewGroup {
         return true;
     }
 
-    protected void redrawEntireBitmaps() {
-        if (mEntireBm != null && !mEntireBm.isRecycled()) {
-            Canvas entireCanvas = new Canvas(mEntireBm);
-            drawBitmaps(entireCanvas, null, null);
-            mEntire.setImageBitmap(mEntireBm);
-            mEntire.invalidate();
-        }
-    }
-
-    private void redrawZoomedBitmaps() {
-        if (mPatchBm != null && !mPatchBm.isRecycled()) {
-            Canvas zoomedCanvas = new Canvas(mPatchBm);
-            drawBitmaps(zoomedCanvas, mPatchViewSize, mPatchArea);
-            mPatch.setImageBitmap(mPatchBm);
-            mPatch.invalidate();
-        }
+    /**
+     * Redraw the stamps after they were added, moved or removed. They are
+     * drawn over the page, so the page itself is not rendered again.
+     */
+    public void invalidateStamps() {
+        if (mStampView != null)
+            mStampView.invalidate();
+        // Stamps restored from a parcel may have come with their images left on disk
+        if (mLoadStamps == null && !mIsBlank)
+            loadStampImages();
     }
 
 
@@ -978,6 +1233,7 @@ public abstract class PageView extends ViewGroup {
                     PdfBitmap newPdfBitmap = new PdfBitmap(signBitmap, SIGN_WIDTH, SIGN_HEIGHT, (int) screenX, (int) screenY, mPageNumber, PdfBitmap.Type.SIGNATURE);
                     mAdapter.getPdfBitmapList().add(newPdfBitmap);
                     mAdapter.setNumSignature(mAdapter.getNumSignature() + 1);
+                    invalidateStamps();
                 }
             }
             flagPositions = true;
@@ -993,7 +1249,8 @@ public abstract class PageView extends ViewGroup {
      */
     private int removeIfExistSign(Point screenPoint) {
         PdfBitmap toRemove = null;
-        for (PdfBitmap pdfBitmap : mAdapter.getPdfBitmapList()) {
+        queryBitmaps(screenPoint.x, screenPoint.y, screenPoint.x, screenPoint.y);
+        for (PdfBitmap pdfBitmap : mStamps) {
             if (pdfBitmap.getPageNumber() == mPageNumber) {
                 float[] scaledSize = scaledSize(pdfBitmap.getWidth(), pdfBitmap.getHeight());
                 int originalW = (int) scaledSize[0];
@@ -1011,20 +1268,7 @@ public abstract class PageView extends ViewGroup {
                     if (indexOf && toRemove.isRemovable()) {
                         mAdapter.getPdfBitmapList().remove(toRemove);
                         mAdapter.setNumSignature(mAdapter.getNumSignature() - 1);
-
-                        // We need to remove the previous entireBm (with the bitmaps added), and create a new one empty (the bitmaps will be added on update)
-                        Log.i(TAG, "Recycle mEntire on removeIfExistSign: " + mEntireBm);
-                        final Bitmap oldEntireBm = mEntireBm;
-                        try {
-                            mEntireBm = Bitmap.createBitmap(mParentSize.x, mParentSize.y, Bitmap.Config.ARGB_8888);
-                            updateEntireCanvas(true);
-                            updateHq(true);
-                        } catch (OutOfMemoryError e) {
-                            Log.e(TAG, e.getMessage(), e);
-                        }
-                        if(oldEntireBm!=null && !oldEntireBm.equals(mEntireBm)) {
-                            recycleBitmap(oldEntireBm);
-                        }
+                        invalidateStamps();
                         // Bitmap removed
                         return 0;
                     }
@@ -1058,61 +1302,80 @@ public abstract class PageView extends ViewGroup {
         this.eventCallback = eventCallback;
     }
 
-    private void drawBitmaps(Canvas canvas, Point patchViewSize, Rect patchArea) {
-        // Sólo ejecutamos este código en caso de que tengamos un Bitmap de firma:
-        for (PdfBitmap pdfBitmap : mAdapter.getPdfBitmapList()) {
-
-            float[] scaledSize = scaledSize(pdfBitmap.getWidth(), pdfBitmap.getHeight());
+    /**
+     * Put in mStamps the bitmaps of this page that may lie over the given area,
+     * in the coordinates of pdfCoordsToScreen, or all of them if the page is
+     * not yet sized.
+     */
+    private void queryBitmaps(float left, float top, float right, float bottom) {
+        PdfBitmapStore store = mAdapter.getPdfBitmapList();
+        if (pdfSize == null || mSize == null || mSize.x == 0 || mSize.y == 0) {
+            mStamps.clear();
+            mStamps.addAll(store.getPage(mPageNumber));
+            return;
+        }
+        mStampArea.set(left * pdfSize.x / mSize.x, pdfSize.y - bottom * pdfSize.y / mSize.y,
+                right * pdfSize.x / mSize.x, pdfSize.y - top * pdfSize.y / mSize.y);
+        store.query(mPageNumber, mStampArea, mStamps);
+    }
 
-            float originalW = scaledSize[0];
-            float originalH = scaledSize[1];
-            float zoomRatio = patchViewSize != null ? (float) patchViewSize.y / (float) mSize.y : 1.0f;
-            float newWidth = originalW * zoomRatio;
-            float newHeight = originalH * zoomRatio;
+    private void drawBitmaps(Canvas canvas, Point patchViewSize, Rect patchArea) {
+        if (pdfSize == null || mSize == null)
+            return;
 
-            if (pdfBitmap.getPageNumber() == getPage()) {
+        // Only the bitmaps over the area being drawn are looked at
+        if (patchArea != null && patchViewSize != null && patchViewSize.y != 0) {
+            float toPage = (float) mSize.y / (float) patchViewSize.y;
+            queryBitmaps(patchArea.left * toPage, patchArea.top * toPage,
+                    patchArea.right * toPage, patchArea.bottom * toPage);
+        } else {
+            queryBitmaps(0, 0, mSize.x, mSize.y);
+        }
 
-                float[] screenCoords = pdfCoordsToScreen(pdfBitmap.getPdfX(), pdfBitmap.getPdfY());
+        StampImageCache cache = mAdapter.getStampImageCache();
+        float zoomRatio = patchViewSize != null ? (float) patchViewSize.y / (float) mSize.y : 1.0f;
+        float toScreenX = mSize.x / pdfSize.x;
+        float toScreenY = mSize.y / pdfSize.y;
 
-                float newGlobalPosX = (screenCoords[0] * zoomRatio);
-                float newGlobalPosY = (screenCoords[1] * zoomRatio);
-                float newZoomPosX = patchArea != null ? newGlobalPosX - patchArea.left : newGlobalPosX;
-                float newZoomPosY = patchArea != null ? newGlobalPosY - patchArea.top : newGlobalPosY;
-
-                float leftGlobalMargin = newGlobalPosX - newWidth / 2;
-                float rightGlobalMargin = newGlobalPosX + newWidth / 2;
-                float topGlobalMargin = newGlobalPosY - newHeight / 2;
-                float bottomGlobalMargin = newGlobalPosY + newHeight / 2;
-
-                Rect signZoomedRect = new Rect(
-                        (int) newZoomPosX - (int) newWidth / 2,
-                        (int) newZoomPosY - (int) newHeight / 2,
-                        (int) newZoomPosX + (int) newWidth / 2,
-                        (int) newZoomPosY + (int) newHeight / 2);
-
-                boolean outside;
-                if (patchArea == null) {
-                    outside = false;
+        // Sólo ejecutamos este código en caso de que tengamos un Bitmap de firma:
+        for (PdfBitmap pdfBitmap : mStamps) {
+            if (pdfBitmap.getPageNumber() != getPage())
+                continue;
+
+            // As scaledSize() and pdfCoordsToScreen(), without allocating
+            float newWidth = pdfBitmap.getWidth() * toScreenX * zoomRatio;
+            float newHeight = pdfBitmap.getHeight() * toScreenY * zoomRatio;
+            float newGlobalPosX = pdfBitmap.getPdfX() * toScreenX * zoomRatio;
+            float newGlobalPosY = (pdfSize.y - pdfBitmap.getPdfY()) * toScreenY * zoomRatio;
+
+            if (patchArea != null && (newGlobalPosX + newWidth / 2 <= patchArea.left ||
+                    newGlobalPosX - newWidth / 2 >= patchArea.right ||
+                    newGlobalPosY - newHeight / 2 >= patchArea.bottom ||
+                    newGlobalPosY + newHeight / 2 <= patchArea.top))
+                continue;
+
+            float newZoomPosX = patchArea != null ? newGlobalPosX - patchArea.left : newGlobalPosX;
+            float newZoomPosY = patchArea != null ? newGlobalPosY - patchArea.top : newGlobalPosY;
+            mStampDst.set(
+                    (int) newZoomPosX - (int) newWidth / 2,
+                    (int) newZoomPosY - (int) newHeight / 2,
+                    (int) newZoomPosX + (int) newWidth / 2,
+                    (int) newZoomPosY + (int) newHeight / 2);
+
+            Bitmap bitmap = pdfBitmap.getBitmapImage();
+            if (bitmap == null)
+                continue; // Not yet read back from disk
+            try {
+                if (!isBitmapRecycled(bitmap)) {
+                    // A copy scaled to about the size shown, so this is close to a plain copy
+                    Bitmap scaled = cache.get(bitmap, newWidth);
+                    mStampSrc.set(0, 0, scaled.getWidth(), scaled.getHeight());
+                    canvas.drawBitmap(scaled, mStampSrc, mStampDst, mBitmapPaint);
                 } else {
-                    outside = (rightGlobalMargin <= patchArea.left ||
-                            leftGlobalMargin >= patchArea.right ||
-                            topGlobalMargin >= patchArea.bottom ||
-                            bottomGlobalMargin <= patchArea.top);
-                }
-
-                if (!outside) {
-                    Bitmap bitmap = pdfBitmap.getBitmapImage();
-                    try {
-                        if (!isBitmapRecycled(bitmap)) {
-                            canvas.drawBitmap(bitmap, new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()), signZoomedRect, mBitmapPaint);
-                            canvas.save();
-                        } else {
-                            Log.i(TAG, "Avoided using recycled bitmap");
-                        }
-                    } catch (RuntimeException e) {
-                        Log.e(TAG, e.getLocalizedMessage(), e);
-                    }
+                    Log.i(TAG, "Avoided using recycled bitmap");
                 }
+            } catch (RuntimeException e) {
+                Log.e(TAG, e.getLocalizedMessage(), e);
             }
         }
     }
@@ -1,5 +1,6 @@
 package com.artifex.mupdfdemo;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Point;
 import android.graphics.Rect;
@@ -7,6 +8,7 @@ import android.os.SystemClock;
 import androidx.core.view.MotionEventCompat;
 import android.util.AttributeSet;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
@@ -25,7 +27,8 @@ import java.util.NoSuchElementException;
 
 public class ReaderView
 		extends AdapterView<Adapter>
-		implements GestureDetector.OnGestureListener, GestureDetector.OnDoubleTapListener, ScaleGestureDetector.OnScaleGestureListener, Runnable {
+		implements GestureDetector.OnGestureListener, GestureDetector.OnDoubleTapListener, ScaleGestureDetector.OnScaleGestureListener, Runnable,
+		MemoryManager.Trimmable {
 	private static final int  MOVING_DIAGONALLY = 0;
 	private static final int  MOVING_LEFT       = 1;
 	private static final int  MOVING_RIGHT      = 2;
@@ -40,6 +43,7 @@ public class ReaderView
 	private static final float REFLOW_SCALE_FACTOR = 0.5f;
 
 	private static final boolean HORIZONTAL_SCROLLING = true;
+	private static final int     MAX_CACHED_VIEWS = 3;
 
 	private Adapter           mAdapter;
 	private int               mCurrent;    // Adapter's index for the current view
@@ -49,6 +53,7 @@ public class ReaderView
 					       // Shadows the children of the adapter view
 					       // but with more sensible indexing
 	private final LinkedList<View> mViewCache = new LinkedList<View>();
+					       // Views no longer in use, most recently used last
 	private boolean           mUserInteracting;  // Whether the user is interacting
 	private boolean           mScaling;    // Whether the user is currently pinch zooming
 	private float             mScale     = 1.0f;
@@ -56,6 +61,7 @@ public class ReaderView
 	private int               mYScroll;    // and then accounted for in onLayout
 	private boolean           mReflow = false;
 	private boolean           mReflowChanged = false;
+	private boolean           mHqReleased; // Zoomed patches given back under memory pressure
 	private final GestureDetector
 				  mGestureDetector;
 	private final ScaleGestureDetector
@@ -83,6 +89,7 @@ public class ReaderView
 		mScaleGestureDetector = new ScaleGestureDetector(context, this);
 		mScroller        = new Scroller(context);
 		mStepper = new Stepper(this, this);
+		MemoryManager.getInstance().register(this, MemoryManager.PRIORITY_PAGES);
 	}
 
 	public ReaderView(Context context, AttributeSet attrs) {
@@ -103,6 +110,7 @@ public class ReaderView
 			mScaleGestureDetector = new ScaleGestureDetector(context, this);
 			mScroller        = new Scroller(context);
 			mStepper = new Stepper(this, this);
+			MemoryManager.getInstance().register(this, MemoryManager.PRIORITY_PAGES);
 		}
 	}
 
@@ -112,6 +120,7 @@ public class ReaderView
 		mScaleGestureDetector = new ScaleGestureDetector(context, this);
 		mScroller        = new Scroller(context);
 		mStepper = new Stepper(this, this);
+		MemoryManager.getInstance().register(this, MemoryManager.PRIORITY_PAGES);
 	}
 
 	public int getDisplayedViewIndex() {
@@ -342,7 +351,7 @@ public class ReaderView
 	protected void onUnsettle(View v) {};
 
 	protected void onNotInUse(View v) {
-		((PageView)v).releaseResources();
+		((PageView)v).recycle();
 	};
 
 	protected void onScaleChild(View v, Float scale) {};
@@ -649,8 +658,7 @@ public class ReaderView
 				int ai = childIndices[i];
 				if (ai < mCurrent - 1 || ai > mCurrent + 1) {
 					View v = mChildViews.get(ai);
-					onNotInUse(v);
-					mViewCache.add(v);
+					cacheView(v);
 					removeViewInLayout(v);
 					mChildViews.remove(ai);
 				}
@@ -663,8 +671,7 @@ public class ReaderView
 			int numChildren = mChildViews.size();
 			for (int i = 0; i < numChildren; i++) {
 				View v = mChildViews.valueAt(i);
-				onNotInUse(v);
-				mViewCache.add(v);
+				cacheView(v);
 				removeViewInLayout(v);
 			}
 			mChildViews.clear();
@@ -672,7 +679,7 @@ public class ReaderView
 			// Don't reuse cached views if the adapter has changed
 			if (mReflowChanged) {
 				mReflowChanged = false;
-				mViewCache.clear();
+				clearViewCache();
 			}
 
 			// post to ensure generation of hq area
@@ -683,10 +690,12 @@ public class ReaderView
 		int cvLeft, cvRight, cvTop, cvBottom;
 		boolean notPresent = (mChildViews.get(mCurrent) == null);
 		cv = getOrCreateChild(mCurrent);
-        currentPage = (PageView) cv;
-		currentPage.setEventCallback(eventCallback);
-
-        currentPage.setParentSize(new Point(right-left, bottom-top));
+		// Reflow views are not PageViews
+		currentPage = cv instanceof PageView ? (PageView) cv : null;
+		if (currentPage != null) {
+			currentPage.setEventCallback(eventCallback);
+			currentPage.setParentSize(new Point(right-left, bottom-top));
+		}
 		// When the view is sub-screen-size in either dimension we
 		// offset it to center within the screen area, and to keep
 		// the views spaced out
@@ -794,7 +803,34 @@ public class ReaderView
 		if (mViewCache.size() == 0)
 			return null;
 		else
-			return mViewCache.removeFirst();
+			return mViewCache.removeLast();
+	}
+
+	// Hold a view no longer in use for reuse. Enough are held to replace
+	// all the children at once; the least recently used beyond that go.
+	private void cacheView(View v) {
+		onNotInUse(v);
+		mViewCache.addLast(v);
+		while (mViewCache.size() > MAX_CACHED_VIEWS)
+			discardView(mViewCache.removeFirst());
+	}
+
+	private long clearViewCache() {
+		long freed = 0;
+		while (mViewCache.size() > 0)
+			freed += discardView(mViewCache.removeFirst());
+		return freed;
+	}
+
+	// A page view keeps its bitmap while not in use, to be reused for the
+	// next page, so one that is not going to be reused must let go of it
+	private long discardView(View v) {
+		if (!(v instanceof PageView))
+			return 0;
+		PageView pageView = (PageView) v;
+		long freed = pageView.getBitmapBytes();
+		pageView.releaseBitmaps();
+		return freed;
 	}
 
 	private View getOrCreateChild(int i) {
@@ -877,6 +913,50 @@ public class ReaderView
 		});
 	}
 
+	/*
+	 * Under memory pressure, give back the zoomed patches, and once in the
+	 * background also the pages either side of the current one. All are
+	 * made again when next needed.
+	 */
+	public long trim(int level) {
+		long freed = 0;
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			for (int i = 0; i < mChildViews.size(); i++) {
+				View v = mChildViews.valueAt(i);
+				if (v instanceof PageView)
+					freed += ((PageView) v).releaseHq();
+			}
+			mHqReleased = true;
+		}
+
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+			for (int i = mChildViews.size() - 1; i >= 0; i--) {
+				if (mChildViews.keyAt(i) == mCurrent)
+					continue;
+				View v = mChildViews.valueAt(i);
+				onNotInUse(v);
+				freed += discardView(v);
+				removeViewInLayout(v);
+				mChildViews.removeAt(i);
+			}
+			freed += clearViewCache();
+			requestLayout();
+		}
+		return freed;
+	}
+
+	@Override
+	protected void onWindowVisibilityChanged(int visibility) {
+		super.onWindowVisibilityChanged(visibility);
+		// Render the zoomed patch given back by trim again
+		if (visibility == VISIBLE && mHqReleased) {
+			mHqReleased = false;
+			View v = mChildViews.get(mCurrent);
+			if (v != null)
+				postSettle(v);
+		}
+	}
+
 	private void postUnsettle(final View v) {
 		post (new Runnable() {
 			public void run () {
@@ -926,14 +1006,30 @@ public class ReaderView
 			// Add the bitmap to the adapter.
 			((MuPDFPageAdapter)mAdapter).addBitmap(pdfBitmap);
 			// Update the view to see the added bitmap.
-			updateCurrentPage();
+			invalidateStamps();
 		}
     }
 
+	/**
+	 * Add, move and remove stamps in one go. The pages in view are redrawn
+	 * once, after all the changes, and only those whose stamps changed.
+	 */
+	public void applyStamps(StampBatch batch) {
+		if (!(mAdapter instanceof MuPDFPageAdapter) || batch.isEmpty())
+			return;
+		SparseBooleanArray pages = ((MuPDFPageAdapter) mAdapter).applyStamps(batch);
+		for (int i = 0; i < mChildViews.size(); i++) {
+			View v = mChildViews.valueAt(i);
+			if (v instanceof PageView && pages.get(((PageView) v).getPage()))
+				((PageView) v).invalidateStamps();
+		}
+	}
+
 	public void setPdfBitmapList(Collection<PdfBitmap> pdfBitmaps) {
 		this.pdfBitmaps = pdfBitmaps;
 		if (mAdapter instanceof MuPDFPageAdapter) {
 			((MuPDFPageAdapter) mAdapter).setPdfBitmapList(pdfBitmaps);
+			invalidateStamps();
 		}
 	}
 
@@ -974,9 +1070,17 @@ public class ReaderView
 
 	public void updateCurrentPage() {
 		if (currentPage != null) {
-			//setDisplayedViewIndex(currentPage.getPage());
-			currentPage.redrawEntireBitmaps(); // No repinta el zoomed si ya estoy zoomed.
-			currentPage.updateHq(true);
+			// Stamps are drawn over the page, so it need not be rendered again
+			currentPage.invalidateStamps();
+		}
+	}
+
+	// Show the current stamps on all the pages in view
+	private void invalidateStamps() {
+		for (int i = 0; i < mChildViews.size(); i++) {
+			View v = mChildViews.valueAt(i);
+			if (v instanceof PageView)
+				((PageView) v).invalidateStamps();
 		}
 	}
 
@@ -996,6 +1100,7 @@ public class ReaderView
 		if (pageView != null) {
 			pageView.updateEntireCanvas(false);
 			pageView.updateHq(true);
+			pageView.invalidateStamps();
 		}
 	}
 
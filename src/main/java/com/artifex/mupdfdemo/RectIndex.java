@@ -0,0 +1,140 @@
+package com.artifex.mupdfdemo;
+
+import android.graphics.RectF;
+
+/*
+ * An immutable spatial index over a fixed set of rectangles, such as
+ * the links, widgets or annotations of a page. The bounds of the set are
+ * divided into a uniform grid, and each cell records the rectangles that
+ * overlap it, in their original order. A point lookup then only tests
+ * the handful of rectangles sharing its cell, and still reports the
+ * same rectangle as a linear scan would.
+ */
+public class RectIndex {
+	private static final int MAX_CELLS_PER_SIDE = 32;
+
+	private final RectF mRects[];
+	private final float mLeft, mTop;
+	private final float mCellW, mCellH;
+	private final int mCols, mRows;
+	private final int mCellStarts[];  // offset into mCellItems per cell, plus one
+	private final int mCellItems[];
+	private final int mMarks[];        // used to avoid reporting an item twice
+	private int mQueryStamp;
+
+	public RectIndex(RectF rects[]) {
+		mRects = rects != null ? rects : new RectF[0];
+		int n = mRects.length;
+
+		RectF bounds = new RectF();
+		for (RectF r : mRects)
+			if (r != null)
+				bounds.union(r);
+
+		int side = Math.max(1, Math.min(MAX_CELLS_PER_SIDE, (int)Math.ceil(Math.sqrt(n))));
+		mCols = side;
+		mRows = side;
+		mLeft = bounds.left;
+		mTop = bounds.top;
+		mCellW = Math.max(bounds.width() / mCols, Float.MIN_NORMAL);
+		mCellH = Math.max(bounds.height() / mRows, Float.MIN_NORMAL);
+
+		// Count the entries of each cell, then fill them in
+		mCellStarts = new int[mCols * mRows + 1];
+		for (RectF r : mRects) {
+			if (r == null || r.isEmpty())
+				continue;
+			for (int row = row(r.top); row <= row(r.bottom); row++)
+				for (int col = col(r.left); col <= col(r.right); col++)
+					mCellStarts[row * mCols + col + 1]++;
+		}
+		for (int c = 0; c < mCols * mRows; c++)
+			mCellStarts[c + 1] += mCellStarts[c];
+
+		mCellItems = new int[mCellStarts[mCols * mRows]];
+		int fill[] = new int[mCols * mRows];
+		for (int i = 0; i < n; i++) {
+			RectF r = mRects[i];
+			if (r == null || r.isEmpty())
+				continue;
+			for (int row = row(r.top); row <= row(r.bottom); row++) {
+				for (int col = col(r.left); col <= col(r.right); col++) {
+					int cell = row * mCols + col;
+					mCellItems[mCellStarts[cell] + fill[cell]++] = i;
+				}
+			}
+		}
+
+		mMarks = new int[n];
+	}
+
+	public static RectIndex forLinks(LinkInfo links[]) {
+		if (links == null)
+			return new RectIndex(null);
+		RectF rects[] = new RectF[links.length];
+		for (int i = 0; i < links.length; i++)
+			rects[i] = links[i].rect;
+		return new RectIndex(rects);
+	}
+
+	private int col(float x) {
+		return Math.max(0, Math.min(mCols - 1, (int)((x - mLeft) / mCellW)));
+	}
+
+	private int row(float y) {
+		return Math.max(0, Math.min(mRows - 1, (int)((y - mTop) / mCellH)));
+	}
+
+	public int size() {
+		return mRects.length;
+	}
+
+	public RectF get(int i) {
+		return mRects[i];
+	}
+
+	// Index of the first rectangle containing the point, or -1
+	public int hit(float x, float y) {
+		if (mRects.length == 0)
+			return -1;
+
+		int cell = row(y) * mCols + col(x);
+		for (int k = mCellStarts[cell]; k < mCellStarts[cell + 1]; k++) {
+			int i = mCellItems[k];
+			if (mRects[i].contains(x, y))
+				return i;
+		}
+		return -1;
+	}
+
+	/*
+	 * Write to out the indices of the rectangles that intersect area,
+	 * and return how many there are. out must be able to hold size()
+	 * entries. Not thread safe: use from the UI thread only.
+	 */
+	public int query(RectF area, int out[]) {
+		if (mRects.length == 0)
+			return 0;
+
+		if (++mQueryStamp == 0) {
+			for (int i = 0; i < mMarks.length; i++)
+				mMarks[i] = 0;
+			mQueryStamp = 1;
+		}
+
+		int n = 0;
+		for (int row = row(area.top); row <= row(area.bottom); row++) {
+			for (int col = col(area.left); col <= col(area.right); col++) {
+				int cell = row * mCols + col;
+				for (int k = mCellStarts[cell]; k < mCellStarts[cell + 1]; k++) {
+					int i = mCellItems[k];
+					if (mMarks[i] != mQueryStamp && RectF.intersects(mRects[i], area)) {
+						mMarks[i] = mQueryStamp;
+						out[n++] = i;
+					}
+				}
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,97 @@
+package com.artifex.mupdfdemo;
+
+import android.content.ComponentCallbacks2;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+/*
+ * A bounded cache of the reflow HTML generated for each page, shared
+ * by the reflow views of one adapter. Besides the pages asked for,
+ * it generates their neighbours in the background so that turning
+ * the page in reflow mode finds the HTML ready.
+ */
+public class ReflowCache implements MemoryManager.Trimmable {
+	private static final int MIN_CACHE_BYTES = 2 * 1024 * 1024;
+
+	private final MuPDFCore mCore;
+	private final LruCache<Integer, ReflowHtml> mHtml;
+	private final SparseArray<AsyncTask<Void,Void,ReflowHtml>> mPending = new SparseArray<AsyncTask<Void,Void,ReflowHtml>>();
+
+	public ReflowCache(MuPDFCore core) {
+		mCore = core;
+		int maxBytes = (int)Math.max(MIN_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 32);
+		mHtml = new LruCache<Integer, ReflowHtml>(maxBytes) {
+			@Override
+			protected int sizeOf(Integer page, ReflowHtml html) {
+				return html.byteSize();
+			}
+		};
+		MemoryManager.getInstance().register(this, MemoryManager.PRIORITY_CACHE);
+	}
+
+	public ReflowHtml get(int page) {
+		return mHtml.get(page);
+	}
+
+	// Generate the HTML for a page, or take it from the cache. Call off the UI thread.
+	public ReflowHtml load(int page) {
+		ReflowHtml html = mHtml.get(page);
+		if (html == null) {
+			byte bytes[] = mCore.html(page);
+			if (bytes != null) {
+				html = new ReflowHtml(bytes);
+				mHtml.put(page, html);
+			}
+		}
+		return html;
+	}
+
+	// Start generating the pages either side of page, if not already done
+	public void prefetchAround(int page) {
+		prefetch(page + 1);
+		prefetch(page - 1);
+	}
+
+	private void prefetch(final int page) {
+		if (page < 0 || page >= mCore.countPages())
+			return;
+		if (mHtml.get(page) != null || mPending.get(page) != null)
+			return;
+
+		AsyncTask<Void,Void,ReflowHtml> task = new AsyncTask<Void,Void,ReflowHtml>() {
+			@Override
+			protected ReflowHtml doInBackground(Void... params) {
+				return load(page);
+			}
+
+			@Override
+			protected void onPostExecute(ReflowHtml result) {
+				mPending.remove(page);
+			}
+
+			@Override
+			protected void onCancelled() {
+				mPending.remove(page);
+			}
+		};
+		mPending.put(page, task);
+		task.execute();
+	}
+
+	public void clear() {
+		for (int i = 0; i < mPending.size(); i++)
+			mPending.valueAt(i).cancel(true);
+		mPending.clear();
+		mHtml.evictAll();
+	}
+
+	// The least recently used half at first, all of it once memory is short
+	public long trim(int level) {
+		int before = mHtml.size();
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			clear();
+		else
+			mHtml.trimToSize(mHtml.maxSize() / 2);
+		return before - mHtml.size();
+	}
+}
@@ -0,0 +1,157 @@
+package com.artifex.mupdfdemo;
+
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/*
+ * The reflow HTML of one page as produced natively, with the positions
+ * of its inlined base64 images. The page can be streamed to a WebView
+ * straight from the native bytes with each image replaced by a short
+ * reference, and an image is only decoded when the WebView asks for it.
+ */
+public class ReflowHtml {
+	private static final byte SRC_DATA[] = ascii("src=\"data:");
+	private static final byte BASE64_MARKER[] = ascii(";base64,");
+
+	private final byte mHtml[];
+	// Per image: where its data URI sits in mHtml (excluding the quotes),
+	// where the base64 payload starts within it, and its MIME type
+	private final int mUriStarts[];
+	private final int mUriEnds[];
+	private final int mPayloadStarts[];
+	private final String mMimeTypes[];
+
+	public ReflowHtml(byte html[]) {
+		mHtml = html;
+
+		ArrayList<int[]> found = new ArrayList<int[]>();
+		ArrayList<String> types = new ArrayList<String>();
+		int i = 0;
+		while ((i = indexOf(html, SRC_DATA, i)) >= 0) {
+			int uriStart = i + SRC_DATA.length - "data:".length();
+			int uriEnd = uriStart;
+			while (uriEnd < html.length && html[uriEnd] != '"')
+				uriEnd++;
+			i = uriEnd;
+			if (uriEnd == html.length)
+				break;
+
+			int marker = indexOf(html, BASE64_MARKER, uriStart);
+			if (marker < 0 || marker > uriEnd)
+				continue;  // Not base64: leave it inline
+
+			found.add(new int[] {uriStart, uriEnd, marker + BASE64_MARKER.length});
+			types.add(new String(html, uriStart + "data:".length(), marker - uriStart - "data:".length()));
+		}
+
+		int n = found.size();
+		mUriStarts = new int[n];
+		mUriEnds = new int[n];
+		mPayloadStarts = new int[n];
+		mMimeTypes = types.toArray(new String[n]);
+		for (int k = 0; k < n; k++) {
+			int f[] = found.get(k);
+			mUriStarts[k] = f[0];
+			mUriEnds[k] = f[1];
+			mPayloadStarts[k] = f[2];
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		byte b[] = new byte[s.length()];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte)s.charAt(i);
+		return b;
+	}
+
+	private static int indexOf(byte haystack[], byte needle[], int from) {
+		outer:
+		for (int i = from; i <= haystack.length - needle.length; i++) {
+			for (int j = 0; j < needle.length; j++)
+				if (haystack[i + j] != needle[j])
+					continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+	// Approximate memory held, for cache accounting
+	public int byteSize() {
+		return mHtml.length + mUriStarts.length * 16;
+	}
+
+	public int countImages() {
+		return mUriStarts.length;
+	}
+
+	public String getImageMimeType(int image) {
+		return mMimeTypes[image];
+	}
+
+	// The reference that replaces image k in the streamed HTML, relative to the page URL
+	public static String imageReference(int image) {
+		return "img" + image;
+	}
+
+	public InputStream openHtml() {
+		return new HtmlStream();
+	}
+
+	public InputStream openImage(int image) {
+		int start = mPayloadStarts[image];
+		return new ByteArrayInputStream(Base64.decode(mHtml, start, mUriEnds[image] - start, Base64.DEFAULT));
+	}
+
+	/*
+	 * Streams mHtml, alternating between runs of the original bytes and
+	 * the references that stand in for the image data URIs.
+	 */
+	private class HtmlStream extends InputStream {
+		private int mPos;       // position in mHtml
+		private int mImage;     // next image to replace
+		private byte mRef[];    // reference currently being emitted, if any
+		private int mRefPos;
+
+		@Override
+		public int read() {
+			byte one[] = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte buffer[], int offset, int length) {
+			if (length == 0)
+				return 0;
+
+			if (mRef != null) {
+				int n = Math.min(length, mRef.length - mRefPos);
+				System.arraycopy(mRef, mRefPos, buffer, offset, n);
+				mRefPos += n;
+				if (mRefPos == mRef.length)
+					mRef = null;
+				return n;
+			}
+
+			if (mPos >= mHtml.length)
+				return -1;
+
+			int runEnd = mImage < mUriStarts.length ? mUriStarts[mImage] : mHtml.length;
+			if (mPos == runEnd) {
+				// Skip the data URI and emit its reference instead
+				mRef = ascii(imageReference(mImage));
+				mRefPos = 0;
+				mPos = mUriEnds[mImage];
+				mImage++;
+				return read(buffer, offset, length);
+			}
+
+			int n = Math.min(length, runEnd - mPos);
+			System.arraycopy(mHtml, mPos, buffer, offset, n);
+			mPos += n;
+			return n;
+		}
+	}
+}
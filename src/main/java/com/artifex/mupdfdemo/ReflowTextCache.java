@@ -0,0 +1,100 @@
+package com.artifex.mupdfdemo;
+
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+
+/*
+ * The reflowed text of each page, and its layouts keyed by width and
+ * font size, so that zooming back to a size already seen, or returning
+ * to a page, does not lay the text out again. Shared by the views of a
+ * MuPDFReflowAdapter.
+ */
+public class ReflowTextCache {
+	private static final int MAX_PAGES = 16;
+	private static final int MAX_LAYOUTS = 12;
+	private static final char SOFT_HYPHEN = '\u00ad';
+	private static final char HYPHEN = '\u2010';
+
+	private final MuPDFCore mCore;
+	private final LruCache<Integer, CharSequence> mText = new LruCache<Integer, CharSequence>(MAX_PAGES);
+	private final LruCache<String, ReflowTextLayout> mLayouts = new LruCache<String, ReflowTextLayout>(MAX_LAYOUTS);
+
+	public ReflowTextCache(MuPDFCore core) {
+		mCore = core;
+	}
+
+	private static String key(int page, int width, int screenHeight, float textSize) {
+		return page + ":" + width + "x" + screenHeight + "@" + textSize;
+	}
+
+	ReflowTextLayout getLayout(int page, int width, int screenHeight, float textSize) {
+		return mLayouts.get(key(page, width, screenHeight, textSize));
+	}
+
+	// Call off the UI thread
+	ReflowTextLayout loadLayout(int page, int width, int screenHeight, int margin, TextPaint paint) {
+		String key = key(page, width, screenHeight, paint.getTextSize());
+		ReflowTextLayout layout = mLayouts.get(key);
+		if (layout != null)
+			return layout;
+
+		StaticLayout text = new StaticLayout(loadText(page), paint, Math.max(1, width - 2 * margin),
+				Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+		layout = new ReflowTextLayout(text, screenHeight, margin);
+		mLayouts.put(key, layout);
+		return layout;
+	}
+
+	private CharSequence loadText(int page) {
+		CharSequence text = mText.get(page);
+		if (text == null) {
+			text = reflow(mCore.textPage(page));
+			mText.put(page, text);
+		}
+		return text;
+	}
+
+	// Blocks become paragraphs, and the lines within them are rejoined
+	private static CharSequence reflow(TextPage page) {
+		StringBuilder sb = new StringBuilder(page.countChars() + page.countWords());
+		for (int block = 0; block < page.countBlocks(); block++) {
+			if (block > 0)
+				sb.append("\n\n");
+			int paragraphStart = sb.length();
+			for (int line = page.getBlockLineStart(block); line < page.getBlockLineEnd(block); line++) {
+				if (sb.length() > paragraphStart)
+					joinLine(sb, page, page.getLineWordStart(line));
+				for (int word = page.getLineWordStart(line); word < page.getLineWordEnd(line); word++) {
+					if (word > page.getLineWordStart(line))
+						sb.append(' ');
+					page.appendWord(word, sb);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Join a line to the text before it. Only a soft hyphen followed by a
+	 * lowercase letter is taken for a word broken across the lines, and is
+	 * dropped. A hyphen written out may belong to the word ("well-known"),
+	 * so it is kept, and the lines are joined without a space.
+	 */
+	private static void joinLine(StringBuilder sb, TextPage page, int firstWord) {
+		int len = sb.length();
+		char last = sb.charAt(len - 1);
+		char next = page.getChar(page.getWordCharStart(firstWord));
+		boolean attached = len > 1 && Character.isLetter(sb.charAt(len - 2));
+		if (last == SOFT_HYPHEN && Character.isLowerCase(next))
+			sb.setLength(len - 1);
+		else if (!attached || (last != SOFT_HYPHEN && last != '-' && last != HYPHEN))
+			sb.append(' ');
+	}
+
+	public void clear() {
+		mText.evictAll();
+		mLayouts.evictAll();
+	}
+}
@@ -0,0 +1,67 @@
+package com.artifex.mupdfdemo;
+
+import android.graphics.Canvas;
+import android.text.StaticLayout;
+
+/*
+ * A page of reflowed text, laid out for one width and font size and cut
+ * into screen sized pieces at line boundaries, so that no line is split
+ * between two screens.
+ */
+class ReflowTextLayout {
+	private final StaticLayout mLayout;
+	private final int mScreenHeight;
+	private final int mMargin;
+	private final int mScreenStarts[];  // first line of each screen
+
+	ReflowTextLayout(StaticLayout layout, int screenHeight, int margin) {
+		mLayout = layout;
+		mScreenHeight = screenHeight;
+		mMargin = margin;
+
+		int usable = Math.max(1, screenHeight - 2 * margin);
+		int numLines = layout.getLineCount();
+		int starts[] = new int[Math.max(1, numLines)];
+		int numScreens = 1;
+		int screenTop = 0;
+		for (int line = 0; line < numLines; line++) {
+			// Start a new screen with a line that would overflow this one,
+			// unless it is the first on its screen and simply too tall
+			if (layout.getLineBottom(line) - screenTop > usable && layout.getLineTop(line) > screenTop) {
+				starts[numScreens++] = line;
+				screenTop = layout.getLineTop(line);
+			}
+		}
+		mScreenStarts = new int[numScreens];
+		System.arraycopy(starts, 0, mScreenStarts, 0, numScreens);
+	}
+
+	int getWidth() {
+		return mLayout.getWidth() + 2 * mMargin;
+	}
+
+	int getHeight() {
+		return mScreenStarts.length * mScreenHeight;
+	}
+
+	void draw(Canvas canvas) {
+		int numLines = mLayout.getLineCount();
+		for (int screen = 0; screen < mScreenStarts.length; screen++) {
+			int firstLine = mScreenStarts[screen];
+			int endLine = screen + 1 < mScreenStarts.length ? mScreenStarts[screen + 1] : numLines;
+			if (firstLine >= endLine)
+				continue;
+			int top = mLayout.getLineTop(firstLine);
+			int bottom = mLayout.getLineTop(endLine);
+			int y = screen * mScreenHeight + mMargin;
+
+			if (!canvas.quickReject(0, y, getWidth(), y + bottom - top, Canvas.EdgeType.BW)) {
+				canvas.save();
+				canvas.translate(mMargin, y - top);
+				canvas.clipRect(0, top, mLayout.getWidth(), bottom);
+				mLayout.draw(canvas);
+				canvas.restore();
+			}
+		}
+	}
+}
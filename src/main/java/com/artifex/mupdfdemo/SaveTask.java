@@ -0,0 +1,136 @@
+package com.artifex.mupdfdemo;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import com.artifex.utils.PdfBitmap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/*
+ * Saves the document's changes in the background, showing progress if
+ * it takes a while. The document stays on screen and keeps rendering
+ * meanwhile; see MuPDFCore.save(SaveListener). Given stamps, it first
+ * writes them into the document, and takes those written out of the
+ * collection, as the pages now show them.
+ */
+public abstract class SaveTask {
+	private static final String TAG = "SaveTask";
+	private static final int SAVE_PROGRESS_DELAY = 200;
+	private final Context mContext;
+	private final MuPDFCore mCore;
+	private final Handler mHandler;
+	private final Collection<PdfBitmap> mStamps;
+	private AsyncTask<Void,Integer,Boolean> mSaveTask;
+	private boolean mNoSpace;
+	private boolean mMissingStamp;
+
+	public SaveTask(Context context, MuPDFCore core) {
+		this(context, core, null);
+	}
+
+	public SaveTask(Context context, MuPDFCore core, Collection<PdfBitmap> stamps) {
+		mContext = context;
+		mCore = core;
+		mStamps = stamps;
+		mHandler = new Handler();
+	}
+
+	// Called on the UI thread once the save is over
+	protected abstract void onSaveFinished(boolean saved);
+
+	// The message to show for a save that failed
+	protected int getFailureMessage() {
+		if (mMissingStamp)
+			return R.string.stamp_image_missing;
+		return mNoSpace ? R.string.not_enough_space_to_save : R.string.cannot_save_document;
+	}
+
+	public void go() {
+		if (mCore == null || mSaveTask != null)
+			return;
+		mNoSpace = false;
+		mMissingStamp = false;
+
+		final ProgressDialogX progressDialog = new ProgressDialogX(mContext);
+		progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		progressDialog.setTitle(mContext.getString(R.string.saving_));
+		// A save cannot safely stop half way
+		progressDialog.setCancelable(false);
+		progressDialog.setMax(100);
+
+		// Taken now, as the collection belongs to the UI thread
+		final PdfBitmap stamps[] = mStamps != null ? mStamps.toArray(new PdfBitmap[mStamps.size()]) : new PdfBitmap[0];
+
+		mSaveTask = new AsyncTask<Void,Integer,Boolean>() {
+			private ArrayList<PdfBitmap> mFlattened;
+
+			@Override
+			protected Boolean doInBackground(Void... params) {
+				// Flattening, if any, is the first half of the progress
+				final int saveStart = stamps.length > 0 ? 50 : 0;
+				try {
+					if (stamps.length > 0) {
+						mFlattened = mCore.flattenStamps(stamps, new MuPDFCore.SaveListener() {
+							public void onSaveProgress(int percent) {
+								publishProgress(percent / 2);
+							}
+						});
+						if (mFlattened == null)
+							Log.w(TAG, "Stamps left as they are, as they cannot be written into the document");
+					}
+					return mCore.save(new MuPDFCore.SaveListener() {
+						public void onSaveProgress(int percent) {
+							publishProgress(saveStart + percent * (100 - saveStart) / 100);
+						}
+					});
+				} catch (MuPDFCore.MissingStampException e) {
+					Log.e(TAG, e.getMessage(), e);
+					mMissingStamp = true;
+					return false;
+				} catch (MuPDFCore.NoSpaceException e) {
+					Log.e(TAG, e.getMessage(), e);
+					mNoSpace = true;
+					return false;
+				} catch (IOException e) {
+					Log.e(TAG, e.getMessage(), e);
+					return false;
+				}
+			}
+
+			@Override
+			protected void onPostExecute(Boolean result) {
+				mSaveTask = null;
+				progressDialog.cancel();
+				if (result && mFlattened != null) {
+					for (PdfBitmap stamp : mFlattened)
+						mStamps.remove(stamp);
+				}
+				onSaveFinished(result);
+			}
+
+			@Override
+			protected void onProgressUpdate(Integer... values) {
+				progressDialog.setProgress(values[0].intValue());
+			}
+
+			@Override
+			protected void onPreExecute() {
+				super.onPreExecute();
+				mHandler.postDelayed(new Runnable() {
+					public void run() {
+						if (!progressDialog.isCancelled())
+							progressDialog.show();
+					}
+				}, SAVE_PROGRESS_DELAY);
+			}
+		};
+
+		// Not on the serial executor, where rendering would queue behind it
+		mSaveTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	}
+}
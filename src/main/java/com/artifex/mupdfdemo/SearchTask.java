@@ -7,24 +7,6 @@ import android.content.DialogInterface;
 import android.graphics.RectF;
 import android.os.Handler;
 
-class ProgressDialogX extends ProgressDialog {
-	public ProgressDialogX(Context context) {
-		super(context);
-	}
-
-	private boolean mCancelled = false;
-
-	public boolean isCancelled() {
-		return mCancelled;
-	}
-
-	@Override
-	public void cancel() {
-		mCancelled = true;
-		super.cancel();
-	}
-}
-
 public abstract class SearchTask {
 	private static final int SEARCH_PROGRESS_DELAY = 200;
 	private final Context mContext;
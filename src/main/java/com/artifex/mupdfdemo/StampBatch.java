@@ -0,0 +1,66 @@
+package com.artifex.mupdfdemo;
+
+import com.artifex.utils.PdfBitmap;
+
+import java.util.ArrayList;
+
+/*
+ * A set of stamp changes, possibly across many pages, to be made together
+ * by ReaderView.applyStamps. They are all made before anything is redrawn,
+ * and each page in view that they touch is then redrawn once. Stamps are
+ * fixed in place, so a move replaces one stamp by another.
+ */
+public class StampBatch {
+	static final int ADD = 0;
+	static final int REMOVE = 1;
+
+	static class Edit {
+		final int kind;
+		final PdfBitmap stamp;
+
+		Edit(int _kind, PdfBitmap _stamp) {
+			kind = _kind;
+			stamp = _stamp;
+		}
+	}
+
+	private final ArrayList<Edit> mEdits = new ArrayList<Edit>();
+
+	public StampBatch add(PdfBitmap stamp) {
+		if (stamp == null)
+			throw new IllegalArgumentException("No stamp to add");
+		mEdits.add(new Edit(ADD, stamp));
+		return this;
+	}
+
+	public StampBatch remove(PdfBitmap stamp) {
+		if (stamp == null)
+			throw new IllegalArgumentException("No stamp to remove");
+		mEdits.add(new Edit(REMOVE, stamp));
+		return this;
+	}
+
+	public StampBatch move(PdfBitmap from, PdfBitmap to) {
+		if (from == null || to == null)
+			throw new IllegalArgumentException("No stamp to move");
+		mEdits.add(new Edit(REMOVE, from));
+		mEdits.add(new Edit(ADD, to));
+		return this;
+	}
+
+	public int size() {
+		return mEdits.size();
+	}
+
+	public boolean isEmpty() {
+		return mEdits.isEmpty();
+	}
+
+	public void clear() {
+		mEdits.clear();
+	}
+
+	ArrayList<Edit> edits() {
+		return mEdits;
+	}
+}
@@ -0,0 +1,100 @@
+package com.artifex.mupdfdemo;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+/*
+ * Copies of the stamp images scaled down to about the size they are shown
+ * at, shared by the page views of one adapter, so that compositing a stamp
+ * is close to a plain copy rather than a filtered scale of the full size
+ * image. Sizes are rounded up to steps of a factor of the square root of
+ * two, so zooming within a step reuses the same copy.
+ */
+public class StampImageCache implements MemoryManager.Trimmable {
+	private static final String TAG = "StampImageCache";
+	private static final int MIN_CACHE_BYTES = 2 * 1024 * 1024;
+
+	private static class Key {
+		final Bitmap image;
+		final int step;
+
+		Key(Bitmap image, int step) {
+			this.image = image;
+			this.step = step;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key that = (Key) o;
+			return that.image == image && that.step == step;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(image) * 31 + step;
+		}
+	}
+
+	private final LruCache<Key, Bitmap> mScaled;
+
+	public StampImageCache() {
+		int maxBytes = (int)Math.max(MIN_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 32);
+		mScaled = new LruCache<Key, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(Key key, Bitmap bitmap) {
+				return bitmap.getByteCount();
+			}
+		};
+		MemoryManager.getInstance().register(this, MemoryManager.PRIORITY_CACHE);
+	}
+
+	// The image to draw for image shown width pixels wide: image itself when
+	// it is not much bigger than that, otherwise a copy at most 1.4 times
+	// bigger. Call on the UI thread.
+	public Bitmap get(Bitmap image, float width) {
+		if (image == null || image.isRecycled() || width <= 0)
+			return image;
+		float scale = width / image.getWidth();
+		// Number of steps of sqrt(2) down from the full size
+		int step = (int)Math.floor(-2 * Math.log(scale) / Math.log(2));
+		if (step <= 0)
+			return image;
+
+		Key key = new Key(image, step);
+		Bitmap scaled = mScaled.get(key);
+		if (scaled == null || scaled.isRecycled()) {
+			float stepScale = (float)Math.pow(2, -step / 2.0);
+			int w = Math.max(1, Math.round(image.getWidth() * stepScale));
+			int h = Math.max(1, Math.round(image.getHeight() * stepScale));
+			// A copy taking much of the cache would only push out all the others
+			if ((long)w * h * 4 > mScaled.maxSize() / 4)
+				return image;
+			try {
+				scaled = Bitmap.createScaledBitmap(image, w, h, true);
+			} catch (OutOfMemoryError e) {
+				Log.e(TAG, e.getMessage(), e);
+				return image;
+			}
+			mScaled.put(key, scaled);
+		}
+		return scaled;
+	}
+
+	public void clear() {
+		mScaled.evictAll();
+	}
+
+	// Half the copies at first, all of them once memory is short
+	public long trim(int level) {
+		int before = mScaled.size();
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			mScaled.evictAll();
+		else
+			mScaled.trimToSize(mScaled.maxSize() / 2);
+		return before - mScaled.size();
+	}
+}
@@ -0,0 +1,167 @@
+package com.artifex.mupdfdemo;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/*
+ * Writes the text of a range of pages to a Writer, one page at a time.
+ * Only the current page's text is held in memory, and the core is only
+ * locked while each page is extracted, so rendering can carry on
+ * between pages. Use via MuPDFCore.exportText.
+ */
+public class TextExport {
+	public enum Format {
+		PLAIN,  // words separated by spaces, lines by newlines, blocks by blank lines, pages by form feeds
+		JSON    // {"pages":[{"page":n,"blocks":[{"lines":[{"bbox":[...],"words":[{"text":"...","bbox":[...]}]}]}]}]}
+	}
+
+	public interface Listener {
+		// Called after each page has been written
+		void onProgress(int page, int pagesDone, int pageCount);
+		// Polled before each page; returning true stops the export
+		boolean isCancelled();
+	}
+
+	private final MuPDFCore mCore;
+	private final Format mFormat;
+	private final Writer mOut;
+	private final StringBuilder mBuffer = new StringBuilder();
+
+	TextExport(MuPDFCore core, Format format, Writer out) {
+		mCore = core;
+		mFormat = format;
+		mOut = out;
+	}
+
+	/*
+	 * Returns false if the listener cancelled the export part way through.
+	 * The pages written by then are kept: JSON is closed after the last of
+	 * them, and out is flushed however the export ends.
+	 */
+	boolean run(int firstPage, int lastPage, Listener listener) throws IOException {
+		int pageCount = lastPage - firstPage + 1;
+		boolean finished = true;
+
+		try {
+			if (mFormat == Format.JSON)
+				mOut.write("{\"pages\":[");
+
+			for (int page = firstPage; page <= lastPage; page++) {
+				if (listener != null && listener.isCancelled()) {
+					finished = false;
+					break;
+				}
+
+				TextPage text = mCore.textPage(page);
+				if (mFormat == Format.JSON)
+					writeJson(page, page == firstPage, text);
+				else
+					writePlain(page == firstPage, text);
+
+				if (listener != null)
+					listener.onProgress(page, page - firstPage + 1, pageCount);
+			}
+
+			if (mFormat == Format.JSON)
+				mOut.write("]}");
+		} finally {
+			mOut.flush();
+		}
+
+		return finished;
+	}
+
+	private void writePlain(boolean firstPage, TextPage text) throws IOException {
+		if (!firstPage)
+			mOut.write('\f');
+
+		for (int block = 0; block < text.countBlocks(); block++) {
+			if (block > 0)
+				mOut.write('\n');
+			for (int line = text.getBlockLineStart(block); line < text.getBlockLineEnd(block); line++) {
+				mBuffer.setLength(0);
+				for (int word = text.getLineWordStart(line); word < text.getLineWordEnd(line); word++) {
+					if (mBuffer.length() > 0)
+						mBuffer.append(' ');
+					text.appendWord(word, mBuffer);
+				}
+				mBuffer.append('\n');
+				mOut.append(mBuffer);
+			}
+		}
+	}
+
+	private void writeJson(int page, boolean firstPage, TextPage text) throws IOException {
+		mBuffer.setLength(0);
+		if (!firstPage)
+			mBuffer.append(',');
+		mBuffer.append("{\"page\":").append(page).append(",\"blocks\":[");
+		mOut.append(mBuffer);
+
+		for (int block = 0; block < text.countBlocks(); block++) {
+			mOut.write(block > 0 ? ",{\"lines\":[" : "{\"lines\":[");
+			for (int line = text.getBlockLineStart(block); line < text.getBlockLineEnd(block); line++) {
+				mBuffer.setLength(0);
+				if (line > text.getBlockLineStart(block))
+					mBuffer.append(',');
+				mBuffer.append("{\"bbox\":");
+				appendBox(text.getLineLeft(line), text.getLineTop(line), text.getLineRight(line), text.getLineBottom(line));
+				mBuffer.append(",\"words\":[");
+				for (int word = text.getLineWordStart(line); word < text.getLineWordEnd(line); word++) {
+					if (word > text.getLineWordStart(line))
+						mBuffer.append(',');
+					mBuffer.append("{\"text\":\"");
+					for (int c = text.getWordCharStart(word); c < text.getWordCharEnd(word); c++)
+						appendEscaped(text.getChar(c));
+					mBuffer.append("\",\"bbox\":");
+					appendBox(text.getWordLeft(word), text.getWordTop(word), text.getWordRight(word), text.getWordBottom(word));
+					mBuffer.append('}');
+				}
+				mBuffer.append("]}");
+				mOut.append(mBuffer);
+			}
+			mOut.write("]}");
+		}
+
+		mOut.write("]}");
+	}
+
+	private void appendBox(float left, float top, float right, float bottom) {
+		mBuffer.append('[');
+		appendNumber(left);
+		mBuffer.append(',');
+		appendNumber(top);
+		mBuffer.append(',');
+		appendNumber(right);
+		mBuffer.append(',');
+		appendNumber(bottom);
+		mBuffer.append(']');
+	}
+
+	// JSON has no NaN or Infinity, so such coordinates are written as null
+	private void appendNumber(float f) {
+		if (Float.isNaN(f) || Float.isInfinite(f))
+			mBuffer.append("null");
+		else
+			mBuffer.append(f);
+	}
+
+	private void appendEscaped(char c) {
+		switch (c) {
+		case '"':
+			mBuffer.append("\\\"");
+			break;
+		case '\\':
+			mBuffer.append("\\\\");
+			break;
+		default:
+			if (c < 0x20) {
+				mBuffer.append("\\u00");
+				mBuffer.append(Character.forDigit(c >> 4, 16));
+				mBuffer.append(Character.forDigit(c & 0xf, 16));
+			} else {
+				mBuffer.append(c);
+			}
+		}
+	}
+}
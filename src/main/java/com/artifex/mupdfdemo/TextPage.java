@@ -0,0 +1,375 @@
+package com.artifex.mupdfdemo;
+
+import android.graphics.RectF;
+
+import java.util.Arrays;
+
+/*
+ * The text of a page held in flat primitive arrays rather than
+ * as a graph of TextChar/TextWord objects. Spaces are dropped, so
+ * the characters of each word are contiguous in mChars. Offsets
+ * arrays have one more entry than the items they describe, so that
+ * item i spans [start[i], start[i+1]).
+ *
+ * A line's box is the union of the boxes of all its words. The older
+ * TextWord[][] form had no line box, and selection took the box of the
+ * first word for the line's; lines with raised or lowered words now
+ * reach as far as those words do.
+ */
+public class TextPage {
+	private final char mChars[];
+	private final float mCharBoxes[];  // left, top, right, bottom per char
+	private final int mWordStarts[];   // char offset per word
+	private final float mWordBoxes[];  // left, top, right, bottom per word
+	private final int mLineStarts[];   // word offset per line
+	private final float mLineBoxes[];  // left, top, right, bottom per line
+	private final int mBlockStarts[];  // line offset per block
+
+	// Spatial index used for hit testing. Lines are sorted by their top
+	// edge, and alongside each we keep the greatest bottom edge seen so
+	// far in that order: both arrays are then monotonic, so the lines
+	// that overlap a vertical band can be found by binary search.
+	private final int mLinesByTop[];
+	private final float mSortedTops[];
+	private final float mMaxBottoms[];
+	// Whether the words of each line run left to right without going back
+	private final boolean mLineOrdered[];
+
+	// Also called from the native library, which fills the arrays directly
+	TextPage(char chars[], float charBoxes[], int wordStarts[], float wordBoxes[],
+			int lineStarts[], float lineBoxes[], int blockStarts[]) {
+		mChars = chars;
+		mCharBoxes = charBoxes;
+		mWordStarts = wordStarts;
+		mWordBoxes = wordBoxes;
+		mLineStarts = lineStarts;
+		mLineBoxes = lineBoxes;
+		mBlockStarts = blockStarts;
+
+		int nLines = blockStarts.length > 0 ? blockStarts[blockStarts.length - 1] : 0;
+		mLinesByTop = new int[nLines];
+		mSortedTops = new float[nLines];
+		mMaxBottoms = new float[nLines];
+		mLineOrdered = new boolean[nLines];
+
+		long keys[] = new long[nLines];
+		for (int l = 0; l < nLines; l++)
+			keys[l] = ((long)sortableBits(lineBoxes[l * 4 + 1]) << 32) | l;
+		Arrays.sort(keys);
+
+		float maxBottom = Float.NEGATIVE_INFINITY;
+		for (int k = 0; k < nLines; k++) {
+			int l = (int)keys[k];
+			mLinesByTop[k] = l;
+			mSortedTops[k] = lineBoxes[l * 4 + 1];
+			maxBottom = Math.max(maxBottom, lineBoxes[l * 4 + 3]);
+			mMaxBottoms[k] = maxBottom;
+
+			boolean ordered = true;
+			for (int w = lineStarts[l] + 1; w < lineStarts[l + 1] && ordered; w++)
+				ordered = wordBoxes[w * 4] >= wordBoxes[(w - 1) * 4]
+						&& wordBoxes[w * 4 + 2] >= wordBoxes[(w - 1) * 4 + 2];
+			mLineOrdered[l] = ordered;
+		}
+	}
+
+	// Map a float to an int with the same ordering under signed comparison
+	private static int sortableBits(float f) {
+		int bits = Float.floatToIntBits(f);
+		return bits ^ ((bits >> 31) & 0x7fffffff);
+	}
+
+	// Flatten the object graph returned by native libraries that cannot
+	// fill the arrays themselves
+	static TextPage fromChars(TextChar[][][][] blocks) {
+		// First pass: count what we will keep, so that every array
+		// can be allocated once at its final size
+		int nChars = 0, nWords = 0, nLines = 0, nBlocks = 0;
+		if (blocks != null) {
+			for (TextChar[][][] bl: blocks) {
+				if (bl == null)
+					continue;
+				int blockLines = 0;
+				for (TextChar[][] ln: bl) {
+					int lineWords = 0;
+					boolean inWord = false;
+					for (TextChar[] sp: ln) {
+						for (TextChar tc: sp) {
+							if (tc.c != ' ') {
+								nChars++;
+								if (!inWord) {
+									lineWords++;
+									inWord = true;
+								}
+							} else {
+								inWord = false;
+							}
+						}
+					}
+					if (lineWords > 0) {
+						nWords += lineWords;
+						blockLines++;
+					}
+				}
+				if (blockLines > 0) {
+					nLines += blockLines;
+					nBlocks++;
+				}
+			}
+		}
+
+		char chars[] = new char[nChars];
+		float charBoxes[] = new float[nChars * 4];
+		int wordStarts[] = new int[nWords + 1];
+		float wordBoxes[] = new float[nWords * 4];
+		int lineStarts[] = new int[nLines + 1];
+		float lineBoxes[] = new float[nLines * 4];
+		int blockStarts[] = new int[nBlocks + 1];
+
+		// Second pass: fill
+		int c = 0, w = 0, l = 0, b = 0;
+		if (blocks != null) {
+			for (TextChar[][][] bl: blocks) {
+				if (bl == null)
+					continue;
+				int blockFirstLine = l;
+				for (TextChar[][] ln: bl) {
+					int lineFirstWord = w;
+					boolean inWord = false;
+					for (TextChar[] sp: ln) {
+						for (TextChar tc: sp) {
+							if (tc.c != ' ') {
+								if (!inWord) {
+									wordStarts[w] = c;
+									setBox(wordBoxes, w, tc.left, tc.top, tc.right, tc.bottom);
+									w++;
+									inWord = true;
+								} else {
+									unionBox(wordBoxes, w - 1, tc.left, tc.top, tc.right, tc.bottom);
+								}
+								chars[c] = tc.c;
+								setBox(charBoxes, c, tc.left, tc.top, tc.right, tc.bottom);
+								c++;
+							} else {
+								inWord = false;
+							}
+						}
+					}
+					if (w > lineFirstWord) {
+						lineStarts[l] = lineFirstWord;
+						int i = lineFirstWord * 4;
+						setBox(lineBoxes, l, wordBoxes[i], wordBoxes[i+1], wordBoxes[i+2], wordBoxes[i+3]);
+						for (int wd = lineFirstWord + 1; wd < w; wd++) {
+							i = wd * 4;
+							unionBox(lineBoxes, l, wordBoxes[i], wordBoxes[i+1], wordBoxes[i+2], wordBoxes[i+3]);
+						}
+						l++;
+					}
+				}
+				if (l > blockFirstLine)
+					blockStarts[b++] = blockFirstLine;
+			}
+		}
+		wordStarts[nWords] = nChars;
+		lineStarts[nLines] = nWords;
+		blockStarts[nBlocks] = nLines;
+
+		return new TextPage(chars, charBoxes, wordStarts, wordBoxes, lineStarts, lineBoxes, blockStarts);
+	}
+
+	private static void setBox(float boxes[], int i, float left, float top, float right, float bottom) {
+		i *= 4;
+		boxes[i] = left;
+		boxes[i+1] = top;
+		boxes[i+2] = right;
+		boxes[i+3] = bottom;
+	}
+
+	private static void unionBox(float boxes[], int i, float left, float top, float right, float bottom) {
+		i *= 4;
+		if (left < boxes[i]) boxes[i] = left;
+		if (top < boxes[i+1]) boxes[i+1] = top;
+		if (right > boxes[i+2]) boxes[i+2] = right;
+		if (bottom > boxes[i+3]) boxes[i+3] = bottom;
+	}
+
+	public int countBlocks() {
+		return mBlockStarts.length - 1;
+	}
+
+	public int countLines() {
+		return mLineStarts.length - 1;
+	}
+
+	public int countWords() {
+		return mWordStarts.length - 1;
+	}
+
+	public int countChars() {
+		return mChars.length;
+	}
+
+	public int getBlockLineStart(int block) {
+		return mBlockStarts[block];
+	}
+
+	public int getBlockLineEnd(int block) {
+		return mBlockStarts[block + 1];
+	}
+
+	public int getLineWordStart(int line) {
+		return mLineStarts[line];
+	}
+
+	public int getLineWordEnd(int line) {
+		return mLineStarts[line + 1];
+	}
+
+	public int getWordCharStart(int word) {
+		return mWordStarts[word];
+	}
+
+	public int getWordCharEnd(int word) {
+		return mWordStarts[word + 1];
+	}
+
+	public char getChar(int i) {
+		return mChars[i];
+	}
+
+	public void getCharBounds(int i, RectF out) {
+		i *= 4;
+		out.set(mCharBoxes[i], mCharBoxes[i+1], mCharBoxes[i+2], mCharBoxes[i+3]);
+	}
+
+	public float getWordLeft(int word) {
+		return mWordBoxes[word * 4];
+	}
+
+	public float getWordTop(int word) {
+		return mWordBoxes[word * 4 + 1];
+	}
+
+	public float getWordRight(int word) {
+		return mWordBoxes[word * 4 + 2];
+	}
+
+	public float getWordBottom(int word) {
+		return mWordBoxes[word * 4 + 3];
+	}
+
+	public void getWordBounds(int word, RectF out) {
+		int i = word * 4;
+		out.set(mWordBoxes[i], mWordBoxes[i+1], mWordBoxes[i+2], mWordBoxes[i+3]);
+	}
+
+	// Grow out to include the given word. An empty out is simply replaced.
+	public void unionWordBounds(int word, RectF out) {
+		int i = word * 4;
+		out.union(mWordBoxes[i], mWordBoxes[i+1], mWordBoxes[i+2], mWordBoxes[i+3]);
+	}
+
+	public float getLineLeft(int line) {
+		return mLineBoxes[line * 4];
+	}
+
+	public float getLineTop(int line) {
+		return mLineBoxes[line * 4 + 1];
+	}
+
+	public float getLineRight(int line) {
+		return mLineBoxes[line * 4 + 2];
+	}
+
+	public float getLineBottom(int line) {
+		return mLineBoxes[line * 4 + 3];
+	}
+
+	public void getLineBounds(int line, RectF out) {
+		int i = line * 4;
+		out.set(mLineBoxes[i], mLineBoxes[i+1], mLineBoxes[i+2], mLineBoxes[i+3]);
+	}
+
+	/*
+	 * Find the lines whose bounds overlap the band top < y < bottom.
+	 * Their indices are written to out, which must be able to hold
+	 * countLines() entries, in document order. Returns how many were found.
+	 */
+	public int findLines(float top, float bottom, int out[]) {
+		// Lines from lo on can reach below top; lines before hi start above bottom
+		int lo = 0, hi = mMaxBottoms.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (mMaxBottoms[mid] > top)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		int end = lo;
+		hi = mSortedTops.length;
+		while (end < hi) {
+			int mid = (end + hi) >>> 1;
+			if (mSortedTops[mid] < bottom)
+				end = mid + 1;
+			else
+				hi = mid;
+		}
+
+		int n = 0;
+		for (int k = lo; k < end; k++) {
+			int line = mLinesByTop[k];
+			if (mLineBoxes[line * 4 + 3] > top)
+				out[n++] = line;
+		}
+		Arrays.sort(out, 0, n);
+		return n;
+	}
+
+	/*
+	 * The first word of the line that could extend to the right of x.
+	 * For lines that don't run left to right this is simply the first word.
+	 */
+	public int getLineWordStartAfter(int line, float x) {
+		int lo = mLineStarts[line];
+		if (!mLineOrdered[line])
+			return lo;
+		int hi = mLineStarts[line + 1];
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (mWordBoxes[mid * 4 + 2] > x)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+
+	// Whether the words of the line are ordered left to right
+	public boolean isLineOrdered(int line) {
+		return mLineOrdered[line];
+	}
+
+	public void appendWord(int word, StringBuilder sb) {
+		sb.append(mChars, mWordStarts[word], mWordStarts[word + 1] - mWordStarts[word]);
+	}
+
+	public String getWord(int word) {
+		return new String(mChars, mWordStarts[word], mWordStarts[word + 1] - mWordStarts[word]);
+	}
+
+	// Build the old style object representation, for callers of MuPDFCore.textLines
+	TextWord[][] toTextLines() {
+		TextWord lines[][] = new TextWord[countLines()][];
+		for (int l = 0; l < lines.length; l++) {
+			int first = mLineStarts[l];
+			TextWord words[] = new TextWord[mLineStarts[l + 1] - first];
+			for (int w = 0; w < words.length; w++) {
+				int i = (first + w) * 4;
+				words[w] = new TextWord(getWord(first + w),
+						mWordBoxes[i], mWordBoxes[i+1], mWordBoxes[i+2], mWordBoxes[i+3]);
+			}
+			lines[l] = words;
+		}
+		return lines;
+	}
+}
@@ -10,6 +10,11 @@ public class TextWord extends RectF {
 		w = new String();
 	}
 
+	public TextWord(String _w, float x0, float y0, float x1, float y1) {
+		super(x0, y0, x1, y1);
+		w = _w;
+	}
+
 	public void Add(TextChar tc) {
 		super.union(tc);
 		w = w.concat(new String(new char[]{tc.c}));
@@ -7,6 +7,7 @@ import android.util.Log;
 
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PdfBitmap implements Parcelable {
 
@@ -26,6 +27,16 @@ public class PdfBitmap implements Parcelable {
 	private boolean isRemovable;
 	private HashMap<String, String> metadata;
 
+	private static final AtomicLong lastId = new AtomicLong();
+	private final long id = lastId.incrementAndGet(); // Unique within the process
+	private long contentHash;
+	private boolean hasContentHash;
+	private boolean imagePending; // Image on disk, not yet read back
+	private int storedGeneration = -1; // PdfBitmapFiles.generation() when storeImage wrote the image
+
+	// Follows the null image of the parcel format that has the image on disk
+	private static final int PARCEL_IMAGE_ON_DISK = 0x53544d50;
+
     /**
      * This class is used to store the information of each stamp and annotation on the PDF.
      * @param image The bitmap in charge of storing the stamp or annotation
@@ -51,6 +62,17 @@ public class PdfBitmap implements Parcelable {
 		// We just need to read back each
 		// field in the order that it was
         image = in.readParcelable(Bitmap.class.getClassLoader());
+		if (image == null) {
+			// Either no image at all, or one left on disk; see writeToParcel
+			int position = in.dataPosition();
+			if (in.readInt() == PARCEL_IMAGE_ON_DISK) {
+				contentHash = in.readLong();
+				hasContentHash = true;
+				imagePending = true;
+			} else {
+				in.setDataPosition(position);
+			}
+		}
         height = in.readInt();
         width = in.readInt();
         pdfX = in.readInt();
@@ -61,13 +83,121 @@ public class PdfBitmap implements Parcelable {
 			type = Type.valueOf(typeString);
 		}
 		isRemovable = in.readByte() != 0;
+		metadata = new HashMap<>();
 		in.readMap(metadata, HashMap.class.getClassLoader());
 	}
 	
+	/**
+	 * The stamp's image, or null while it is still on disk; see loadImage().
+	 */
 	public Bitmap getBitmapImage() {
 		return image;
 	}
 
+	public synchronized boolean isImageLoaded() {
+		return !imagePending;
+	}
+
+	/**
+	 * True if the stamp has no image, as when its file was deleted before
+	 * it could be read back. Such a stamp cannot be drawn or written into
+	 * the document, and has to be placed again.
+	 */
+	public synchronized boolean isImageMissing() {
+		return !imagePending && (image == null || image.isRecycled());
+	}
+
+	/**
+	 * Read back an image left on disk when the stamp was parcelled. Call off
+	 * the UI thread. Returns false if the image could not be read, in which
+	 * case the stamp stays without one and is not tried again; see
+	 * isImageMissing().
+	 */
+	public boolean loadImage() {
+		long hash;
+		synchronized (this) {
+			if (!imagePending)
+				return image != null;
+			hash = contentHash;
+		}
+		// Another stamp may have read the same picture back already
+		Bitmap loaded = PdfBitmapImages.get(hash);
+		if (loaded == null) {
+			loaded = PdfBitmapFiles.load(hash);
+			if (loaded != null)
+				loaded = PdfBitmapImages.put(hash, loaded);
+		}
+		synchronized (this) {
+			if (imagePending) {
+				image = loaded;
+				imagePending = false;
+			}
+			return image != null;
+		}
+	}
+
+	/**
+	 * Write the image to PdfBitmapFiles' directory, so that parcelling the
+	 * stamp needs neither its pixels hashed nor its image compressed. Call
+	 * off the UI thread; see PdfBitmapFiles.storeLater(). Returns false if
+	 * the image cannot be stored, in which case it goes in the parcel.
+	 */
+	public boolean storeImage() {
+		Bitmap bitmap;
+		synchronized (this) {
+			if (imagePending || storedGeneration == PdfBitmapFiles.generation())
+				return true;
+			bitmap = image;
+		}
+		int generation = PdfBitmapFiles.generation();
+		if (bitmap == null || !PdfBitmapFiles.store(bitmap, getContentHash()))
+			return false;
+		synchronized (this) {
+			storedGeneration = generation;
+		}
+		return true;
+	}
+
+	/**
+	 * Identifies this stamp, unlike equals(), which also holds for a copy.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Hash of the image's pixels, worked out the first time it is needed,
+	 * which reads every pixel: it is only needed to parcel the stamp, to
+	 * write it into the document, or to tell apart two stamps the same in
+	 * every other way. The image must not be changed once it is given to a
+	 * stamp.
+	 */
+	public synchronized long getContentHash() {
+		if (!hasContentHash) {
+			contentHash = hashPixels(image);
+			hasContentHash = true;
+		}
+		return contentHash;
+	}
+
+	private static long hashPixels(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled())
+			return 0;
+		int w = bitmap.getWidth();
+		int h = bitmap.getHeight();
+		long hash = 1125899906842597L;
+		hash = 31 * hash + w;
+		hash = 31 * hash + h;
+		// A row at a time, so as not to copy the whole image
+		int row[] = new int[w];
+		for (int y = 0; y < h; y++) {
+			bitmap.getPixels(row, 0, w, 0, y, w, 1);
+			for (int x = 0; x < w; x++)
+				hash = 31 * hash + row[x];
+		}
+		return hash;
+	}
+
 	public int getWidth() {
 		return width;
 	}
@@ -85,9 +215,28 @@ public class PdfBitmap implements Parcelable {
 		return 0;
 	}
 
+	/**
+	 * If the image is on disk, whether stored by storeImage() or not yet
+	 * read back, only its content hash goes in the parcel, behind a null
+	 * image and a marker. Otherwise the image goes in the parcel, as it
+	 * always did. Nothing is hashed or written here, as this is called on
+	 * the UI thread.
+	 */
 	@Override
 	public void writeToParcel(Parcel dest, int flags) {
-        dest.writeParcelable(image, flags);
+		boolean onDisk;
+		long hash;
+		synchronized (this) {
+			onDisk = imagePending || storedGeneration == PdfBitmapFiles.generation();
+			hash = contentHash;
+		}
+		if (onDisk) {
+			dest.writeParcelable(null, flags);
+			dest.writeInt(PARCEL_IMAGE_ON_DISK);
+			dest.writeLong(hash);
+		} else {
+			dest.writeParcelable(image, flags);
+		}
 		dest.writeInt(height);
 		dest.writeInt(width);
         dest.writeInt(pdfX);
@@ -153,12 +302,32 @@ public class PdfBitmap implements Parcelable {
 				result = true;
 			} else if (o instanceof PdfBitmap) {
 				PdfBitmap that = (PdfBitmap) o;
-				boolean sameBitmaps = that.getBitmapImage().sameAs(image);
-				result = (that.getPdfX() == pdfX) && (that.getPdfY() == pdfY) && (that.getHeight() == height) && (that.getWidth() == width) && (that.getPageNumber() == pageNumber) && sameBitmaps;
+				result = (that.getPdfX() == pdfX) && (that.getPdfY() == pdfY) && (that.getHeight() == height) && (that.getWidth() == width) && (that.getPageNumber() == pageNumber);
+				// The pixels are only looked at for two stamps alike in all
+				// else, by their hashes, each worked out once per stamp, and
+				// compared in full only when the hashes are the same
+				if (result && that.getBitmapImage() != image) {
+					result = that.getContentHash() == getContentHash();
+					// An image still on disk is known only by its hash
+					if (result && image != null && that.getBitmapImage() != null)
+						result = that.getBitmapImage().sameAs(image);
+				}
 			}
 		} catch (Exception e) {
 			Log.e("PdfBitmap", e.getLocalizedMessage(), e);
 		}
 		return result;
 	}
+
+	@Override
+	public int hashCode() {
+		// Not the content hash, so that stamps can be added to sets and
+		// stores without reading their pixels
+		int result = pdfX;
+		result = 31 * result + pdfY;
+		result = 31 * result + width;
+		result = 31 * result + height;
+		result = 31 * result + pageNumber;
+		return result;
+	}
 }
@@ -0,0 +1,143 @@
+package com.artifex.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Stamp images kept on disk as PNG files named after their content hash,
+ * so that a parcelled stamp need only carry the hash. Each picture is
+ * written once, in the background, however many stamps show it and
+ * however often they are parcelled.
+ */
+public final class PdfBitmapFiles {
+	private static final String TAG = "PdfBitmapFiles";
+	private static File sDirectory;
+	// Counts the deleteAll() runs, so that a stamp can tell its file is gone
+	private static int sGeneration;
+	// One thread, so each picture is written by one stamp while the others wait
+	private static final Executor sWriter = Executors.newSingleThreadExecutor();
+
+	private PdfBitmapFiles() {
+	}
+
+	/**
+	 * Where the images are kept. This has to be somewhere the system does
+	 * not clear on its own, such as under the no-backup files directory,
+	 * as a restored stamp has no other copy of its image. Until this is
+	 * set, stamps are parcelled with their images.
+	 */
+	public static synchronized void setDirectory(File directory) {
+		sDirectory = directory;
+	}
+
+	/**
+	 * Write the stamp's image in the background, so that it is on disk by
+	 * the time the stamp is parcelled. Call when the stamp is added.
+	 */
+	public static void storeLater(final PdfBitmap stamp) {
+		synchronized (PdfBitmapFiles.class) {
+			if (sDirectory == null)
+				return;
+		}
+		sWriter.execute(new Runnable() {
+			public void run() {
+				if (!stamp.storeImage())
+					Log.w(TAG, "Stamp image left to be parcelled: " + stamp);
+			}
+		});
+	}
+
+	/**
+	 * Delete all the images, once no stamp that refers to them is left to
+	 * be restored, as when the document is closed. The deletion is queued
+	 * behind the writes already asked for.
+	 */
+	public static void deleteAll() {
+		final File dir;
+		synchronized (PdfBitmapFiles.class) {
+			dir = sDirectory;
+		}
+		if (dir == null)
+			return;
+		sWriter.execute(new Runnable() {
+			public void run() {
+				synchronized (PdfBitmapFiles.class) {
+					sGeneration++;
+				}
+				File files[] = dir.listFiles();
+				if (files == null)
+					return;
+				for (File file : files)
+					if (!file.delete())
+						Log.w(TAG, "Cannot delete " + file);
+			}
+		});
+	}
+
+	// Which deleteAll() the images now written will be deleted by
+	static synchronized int generation() {
+		return sGeneration;
+	}
+
+	private static synchronized File fileFor(long contentHash) {
+		if (sDirectory == null)
+			return null;
+		return new File(sDirectory, Long.toHexString(contentHash) + ".png");
+	}
+
+	/**
+	 * Make sure the image is on disk. Returns false if it cannot be.
+	 */
+	static boolean store(Bitmap image, long contentHash) {
+		File file = fileFor(contentHash);
+		if (file == null || image == null || image.isRecycled())
+			return false;
+		if (file.isFile())
+			return true;
+
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			return false;
+		// Written aside and renamed, so that a half written file is never taken for the image
+		File temp = new File(dir, file.getName() + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				if (!image.compress(Bitmap.CompressFormat.PNG, 100, out))
+					return false;
+			} finally {
+				out.close();
+			}
+			return temp.renameTo(file);
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+			return false;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Read back an image stored by store(), or null if it is not there.
+	 * Call off the UI thread.
+	 */
+	static Bitmap load(long contentHash) {
+		File file = fileFor(contentHash);
+		if (file == null || !file.isFile())
+			return null;
+		try {
+			return BitmapFactory.decodeFile(file.getPath());
+		} catch (OutOfMemoryError e) {
+			Log.e(TAG, e.getMessage(), e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.artifex.utils;
+
+import android.graphics.Bitmap;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Registry of the stamp images read back from disk by PdfBitmapFiles, so
+ * that stamps restored with the same picture, such as one signature placed
+ * on many pages, share a single Bitmap instead of each decoding its own
+ * copy. Images are found by content hash, which names the file they were
+ * read from, and held weakly: an image leaves the registry once no stamp
+ * shows it. Images given to stamps by the app are never put here, as they
+ * belong to whoever created the stamps and may be recycled by them.
+ */
+public final class PdfBitmapImages {
+
+	private static final HashMap<Long, WeakReference<Bitmap>> sImages = new HashMap<Long, WeakReference<Bitmap>>();
+
+	private PdfBitmapImages() {
+	}
+
+	/**
+	 * The image already read back for contentHash, or null if there is none.
+	 */
+	static synchronized Bitmap get(long contentHash) {
+		WeakReference<Bitmap> ref = sImages.get(contentHash);
+		Bitmap image = ref != null ? ref.get() : null;
+		return image != null && !image.isRecycled() ? image : null;
+	}
+
+	/**
+	 * Register an image just read back, and return the image to use: the
+	 * one registered meanwhile by another stamp, if any, else image itself.
+	 */
+	static synchronized Bitmap put(long contentHash, Bitmap image) {
+		Bitmap registered = get(contentHash);
+		if (registered != null)
+			return registered;
+		for (Iterator<WeakReference<Bitmap>> it = sImages.values().iterator(); it.hasNext(); )
+			if (it.next().get() == null)
+				it.remove();
+		sImages.put(contentHash, new WeakReference<Bitmap>(image));
+		return image;
+	}
+
+	/**
+	 * Number of distinct images currently shared.
+	 */
+	public static synchronized int size() {
+		int size = 0;
+		for (WeakReference<Bitmap> ref : sImages.values())
+			if (ref.get() != null)
+				size++;
+		return size;
+	}
+}
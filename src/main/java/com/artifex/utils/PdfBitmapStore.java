@@ -0,0 +1,349 @@
+package com.artifex.utils;
+
+import android.graphics.RectF;
+import android.util.SparseArray;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The stamps of a document, kept by page and, within each page, in a grid
+ * of fixed size cells over PDF coordinates, so that the stamps over any
+ * part of a page are found without looking at any others. Like the set it
+ * replaces, it holds no two equal stamps. Iteration goes page by page in
+ * increasing page number, and within a page in the order the stamps were
+ * added, which is the order they are drawn in; the lists it returns, all
+ * of one page, follow that order too. A store made by wrap() indexes a
+ * collection of the app's own, and keeps it up to date. Not thread safe;
+ * use it from the UI thread.
+ */
+public class PdfBitmapStore extends AbstractCollection<PdfBitmap> {
+	private static final float CELL_SIZE = 64.0f; // In PDF units
+
+	private static class Entry {
+		final PdfBitmap bitmap;
+		final long sequence;
+		final int cellLeft, cellTop, cellRight, cellBottom;
+		int mark;
+
+		Entry(PdfBitmap bitmap, long sequence) {
+			this.bitmap = bitmap;
+			this.sequence = sequence;
+			RectF bounds = bounds(bitmap, new RectF());
+			cellLeft = cell(bounds.left);
+			cellTop = cell(bounds.top);
+			cellRight = cell(bounds.right);
+			cellBottom = cell(bounds.bottom);
+		}
+	}
+
+	private static final Comparator<Entry> BY_SEQUENCE = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+
+	private static class Page {
+		final ArrayList<Entry> entries = new ArrayList<Entry>();
+		final HashMap<Long, ArrayList<Entry>> cells = new HashMap<Long, ArrayList<Entry>>();
+	}
+
+	private final SparseArray<Page> mPages = new SparseArray<Page>();
+	private final HashMap<PdfBitmap, Entry> mIndex = new HashMap<PdfBitmap, Entry>();
+	private int mSize;
+	private long mSequence;
+	private int mMark;
+	private int mModCount;
+	private final Collection<PdfBitmap> mBacking;
+	private int mBackingSize;
+
+	public PdfBitmapStore() {
+		mBacking = null;
+	}
+
+	public PdfBitmapStore(Collection<? extends PdfBitmap> bitmaps) {
+		mBacking = null;
+		addAll(bitmaps);
+	}
+
+	private PdfBitmapStore(Collection<PdfBitmap> backing, boolean wrap) {
+		mBacking = backing;
+		reindex();
+	}
+
+	/**
+	 * A store over the given collection: stamps added to or removed from
+	 * the store are added to or removed from the collection too. Stamps
+	 * added to or removed from the collection directly are picked up when
+	 * its size no longer matches, which misses a removal and an addition
+	 * made together; change it through the store where that matters.
+	 */
+	public static PdfBitmapStore wrap(Collection<PdfBitmap> bitmaps) {
+		return new PdfBitmapStore(bitmaps, true);
+	}
+
+	// Catch up with changes made to the wrapped collection directly
+	private void sync() {
+		if (mBacking != null && mBacking.size() != mBackingSize)
+			reindex();
+	}
+
+	private void reindex() {
+		clearIndex();
+		for (PdfBitmap bitmap : mBacking)
+			if (bitmap != null)
+				index(bitmap);
+		mBackingSize = mBacking.size();
+	}
+
+	/**
+	 * The area covered by a stamp, in PDF coordinates: it is centred on its
+	 * position, and y increases upwards, so top is less than bottom.
+	 */
+	public static RectF bounds(PdfBitmap bitmap, RectF out) {
+		float halfW = bitmap.getWidth() / 2.0f;
+		float halfH = bitmap.getHeight() / 2.0f;
+		out.set(bitmap.getPdfX() - halfW, bitmap.getPdfY() - halfH,
+				bitmap.getPdfX() + halfW, bitmap.getPdfY() + halfH);
+		return out;
+	}
+
+	private static int cell(float coordinate) {
+		return (int) Math.floor(coordinate / CELL_SIZE);
+	}
+
+	private static Long key(int cellX, int cellY) {
+		return ((long) cellX << 32) | (cellY & 0xffffffffL);
+	}
+
+	@Override
+	public int size() {
+		sync();
+		return mSize;
+	}
+
+	@Override
+	public boolean add(PdfBitmap bitmap) {
+		if (bitmap == null)
+			throw new NullPointerException();
+		sync();
+		if (!index(bitmap))
+			return false;
+		if (mBacking != null) {
+			mBacking.add(bitmap);
+			mBackingSize = mBacking.size();
+		}
+		return true;
+	}
+
+	private boolean index(PdfBitmap bitmap) {
+		if (mIndex.containsKey(bitmap))
+			return false;
+
+		Page page = mPages.get(bitmap.getPageNumber());
+		if (page == null) {
+			page = new Page();
+			mPages.put(bitmap.getPageNumber(), page);
+		}
+
+		Entry entry = new Entry(bitmap, mSequence++);
+		mIndex.put(bitmap, entry);
+		page.entries.add(entry);
+		for (int y = entry.cellTop; y <= entry.cellBottom; y++) {
+			for (int x = entry.cellLeft; x <= entry.cellRight; x++) {
+				Long key = key(x, y);
+				ArrayList<Entry> cell = page.cells.get(key);
+				if (cell == null) {
+					cell = new ArrayList<Entry>(2);
+					page.cells.put(key, cell);
+				}
+				cell.add(entry);
+			}
+		}
+		mSize++;
+		mModCount++;
+		return true;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		sync();
+		return o instanceof PdfBitmap && mIndex.containsKey(o);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof PdfBitmap))
+			return false;
+		sync();
+		Entry entry = mIndex.get(o);
+		if (entry == null)
+			return false;
+		int pageNumber = entry.bitmap.getPageNumber();
+		Page page = mPages.get(pageNumber);
+		removeAt(pageNumber, page, page.entries.indexOf(entry));
+		return true;
+	}
+
+	private void removeAt(int pageNumber, Page page, int i) {
+		Entry entry = page.entries.remove(i);
+		mIndex.remove(entry.bitmap);
+		for (int y = entry.cellTop; y <= entry.cellBottom; y++) {
+			for (int x = entry.cellLeft; x <= entry.cellRight; x++) {
+				Long key = key(x, y);
+				ArrayList<Entry> cell = page.cells.get(key);
+				cell.remove(entry);
+				if (cell.isEmpty())
+					page.cells.remove(key);
+			}
+		}
+		if (page.entries.isEmpty())
+			mPages.remove(pageNumber);
+		mSize--;
+		mModCount++;
+		if (mBacking != null) {
+			mBacking.remove(entry.bitmap);
+			mBackingSize = mBacking.size();
+		}
+	}
+
+	@Override
+	public void clear() {
+		clearIndex();
+		if (mBacking != null) {
+			mBacking.clear();
+			mBackingSize = 0;
+		}
+	}
+
+	private void clearIndex() {
+		mIndex.clear();
+		mPages.clear();
+		mSize = 0;
+		mModCount++;
+	}
+
+	/**
+	 * The stamps of one page, in drawing order.
+	 */
+	public List<PdfBitmap> getPage(int pageNumber) {
+		sync();
+		Page page = mPages.get(pageNumber);
+		if (page == null)
+			return new ArrayList<PdfBitmap>(0);
+		ArrayList<PdfBitmap> result = new ArrayList<PdfBitmap>(page.entries.size());
+		for (Entry entry : page.entries)
+			result.add(entry.bitmap);
+		return result;
+	}
+
+	/**
+	 * Put in out, in drawing order, the stamps of the page that may overlap
+	 * area, given in PDF coordinates as for bounds(). Only the grid cells
+	 * under area are looked at. Returns the number of stamps found.
+	 */
+	public int query(int pageNumber, RectF area, List<PdfBitmap> out) {
+		out.clear();
+		sync();
+		Page page = mPages.get(pageNumber);
+		if (page == null)
+			return 0;
+
+		int left = cell(Math.min(area.left, area.right));
+		int right = cell(Math.max(area.left, area.right));
+		int top = cell(Math.min(area.top, area.bottom));
+		int bottom = cell(Math.max(area.top, area.bottom));
+
+		// A page has fewer entries than cells under a large area: just filter them
+		long numCells = (long) (right - left + 1) * (bottom - top + 1);
+		if (numCells >= page.entries.size()) {
+			for (Entry entry : page.entries)
+				if (entry.cellLeft <= right && entry.cellRight >= left
+						&& entry.cellTop <= bottom && entry.cellBottom >= top)
+					out.add(entry.bitmap);
+			return out.size();
+		}
+
+		// Stamps spanning several cells are found once thanks to the mark
+		int mark = ++mMark;
+		ArrayList<Entry> found = new ArrayList<Entry>();
+		for (int y = top; y <= bottom; y++) {
+			for (int x = left; x <= right; x++) {
+				ArrayList<Entry> cell = page.cells.get(key(x, y));
+				if (cell == null)
+					continue;
+				for (Entry entry : cell) {
+					if (entry.mark != mark) {
+						entry.mark = mark;
+						found.add(entry);
+					}
+				}
+			}
+		}
+
+		// Back into drawing order
+		Collections.sort(found, BY_SEQUENCE);
+		for (Entry entry : found)
+			out.add(entry.bitmap);
+		return out.size();
+	}
+
+	@Override
+	public Iterator<PdfBitmap> iterator() {
+		sync();
+		return new Iterator<PdfBitmap>() {
+			private int mPageIndex;
+			private int mEntryIndex;
+			private int mLastPage = -1;
+			private int mLastEntry = -1;
+			private int mExpectedModCount = mModCount;
+
+			public boolean hasNext() {
+				while (mPageIndex < mPages.size()) {
+					if (mEntryIndex < mPages.valueAt(mPageIndex).entries.size())
+						return true;
+					mPageIndex++;
+					mEntryIndex = 0;
+				}
+				return false;
+			}
+
+			public PdfBitmap next() {
+				if (mExpectedModCount != mModCount)
+					throw new ConcurrentModificationException();
+				if (!hasNext())
+					throw new NoSuchElementException();
+				mLastPage = mPageIndex;
+				mLastEntry = mEntryIndex;
+				return mPages.valueAt(mPageIndex).entries.get(mEntryIndex++).bitmap;
+			}
+
+			public void remove() {
+				if (mLastEntry < 0)
+					throw new IllegalStateException();
+				if (mExpectedModCount != mModCount)
+					throw new ConcurrentModificationException();
+				Page page = mPages.valueAt(mLastPage);
+				boolean lastOfPage = page.entries.size() == 1;
+				removeAt(mPages.keyAt(mLastPage), page, mLastEntry);
+				if (lastOfPage) {
+					// The page went with it
+					mPageIndex = mLastPage;
+					mEntryIndex = 0;
+				} else {
+					mEntryIndex = mLastEntry;
+				}
+				mLastEntry = -1;
+				mExpectedModCount = mModCount;
+			}
+		};
+	}
+}